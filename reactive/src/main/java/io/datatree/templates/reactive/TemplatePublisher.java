@@ -0,0 +1,210 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates.reactive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import io.datatree.Tree;
+import io.datatree.templates.OutputSink;
+import io.datatree.templates.TemplateEngine;
+
+/**
+ * Renders a template as a Publisher of ByteBuffers. Every subscription
+ * renders the template separately, on a thread of the specified Executor. The
+ * rendering is suspended when there is no demand. The static parts of the
+ * template are emitted as shared, read-only buffers (without copying), the
+ * dynamic parts are emitted as new buffers. Usage:
+ *
+ * <pre>
+ * Flow.Publisher&lt;ByteBuffer&gt; publisher = new TemplatePublisher(engine, "index.html", data, executor);
+ * publisher.subscribe(subscriber);
+ * </pre>
+ */
+public class TemplatePublisher implements Flow.Publisher<ByteBuffer> {
+
+	// --- PROPERTIES ---
+
+	protected final TemplateEngine engine;
+
+	protected final String templatePath;
+
+	protected final Tree data;
+
+	protected final Executor executor;
+
+	// --- CONSTRUCTORS ---
+
+	/**
+	 * Creates a Publisher that renders on a new (daemon) Thread per
+	 * subscription.
+	 * 
+	 * @param engine
+	 *            template engine
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * @param data
+	 *            data model as Tree
+	 */
+	public TemplatePublisher(TemplateEngine engine, String templatePath, Tree data) {
+		this(engine, templatePath, data, runnable -> {
+			Thread thread = new Thread(runnable, "template-publisher");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/**
+	 * Creates a Publisher that renders on the specified Executor. The rendering
+	 * blocks its thread while waiting for demand, so the Executor must not be
+	 * shared with the subscribers.
+	 * 
+	 * @param engine
+	 *            template engine
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * @param data
+	 *            data model as Tree
+	 * @param executor
+	 *            executor of the renderings
+	 */
+	public TemplatePublisher(TemplateEngine engine, String templatePath, Tree data, Executor executor) {
+		this.engine = Objects.requireNonNull(engine);
+		this.templatePath = Objects.requireNonNull(templatePath);
+		this.data = data;
+		this.executor = Objects.requireNonNull(executor);
+	}
+
+	// --- PUBLISHER ---
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		RenderSubscription subscription = new RenderSubscription(Objects.requireNonNull(subscriber));
+		subscriber.onSubscribe(subscription);
+		executor.execute(subscription);
+	}
+
+	// --- SUBSCRIPTION ---
+
+	protected class RenderSubscription implements Flow.Subscription, OutputSink, Runnable {
+
+		protected final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+		protected long demand;
+
+		protected boolean cancelled;
+
+		protected Throwable failure;
+
+		protected RenderSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		// --- SUBSCRIPTION METHODS ---
+
+		@Override
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				if (failure == null) {
+					failure = new IllegalArgumentException("Non-positive request: " + n);
+				}
+				cancelled = true;
+			} else {
+				demand += n;
+				if (demand < 0) {
+					demand = Long.MAX_VALUE;
+				}
+			}
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		// --- RENDERING ---
+
+		@Override
+		public void run() {
+			try {
+				engine.process(templatePath, data, this);
+			} catch (Throwable cause) {
+				Throwable error;
+				synchronized (this) {
+					if (failure == null && cancelled) {
+						return;
+					}
+					error = failure == null ? cause : failure;
+				}
+				subscriber.onError(error);
+				return;
+			}
+			synchronized (this) {
+				if (cancelled) {
+					if (failure != null) {
+						subscriber.onError(failure);
+					}
+					return;
+				}
+				cancelled = true;
+			}
+			subscriber.onComplete();
+		}
+
+		// --- OUTPUT SINK ---
+
+		@Override
+		public void writeStatic(ByteBuffer segment) throws IOException {
+			emit(segment);
+		}
+
+		@Override
+		public void write(ByteBuffer chunk) throws IOException {
+			ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+			copy.put(chunk);
+			copy.flip();
+			emit(copy);
+		}
+
+		protected void emit(ByteBuffer buffer) throws IOException {
+			synchronized (this) {
+				while (demand == 0 && !cancelled) {
+					try {
+						wait();
+					} catch (InterruptedException interrupt) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Rendering interrupted!");
+					}
+				}
+				if (cancelled) {
+					throw new IOException("Subscription cancelled!");
+				}
+				demand--;
+			}
+			subscriber.onNext(buffer);
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates.reactive;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.datatree.Tree;
+import io.datatree.templates.TemplateEngine;
+import junit.framework.TestCase;
+
+public class TemplatePublisherTest extends TestCase {
+
+	@Test
+	public void testPublisher() throws Exception {
+		TemplateEngine engine = new TemplateEngine();
+		engine.setRootDirectory("");
+		engine.setStaticSegmentSize(8);
+		engine.define("page.html", "<html><head></head><body>#{for row rows}<p class=\"row\">#{row}</p>#{end}</body></html>");
+		Tree data = new Tree();
+		Tree rows = data.putList("rows");
+		for (int i = 0; i < 10; i++) {
+			rows.add("row" + i);
+		}
+
+		// Request one buffer at a time
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AtomicInteger outstanding = new AtomicInteger();
+		AtomicInteger readOnly = new AtomicInteger();
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		new TemplatePublisher(engine, "page.html", data).subscribe(new Flow.Subscriber<ByteBuffer>() {
+
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				outstanding.incrementAndGet();
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ByteBuffer item) {
+				if (outstanding.decrementAndGet() < 0) {
+					done.completeExceptionally(new IllegalStateException("Demand exceeded!"));
+				}
+				if (item.isReadOnly()) {
+					readOnly.incrementAndGet();
+				}
+				byte[] bytes = new byte[item.remaining()];
+				item.get(bytes);
+				out.write(bytes, 0, bytes.length);
+				outstanding.incrementAndGet();
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				done.complete(null);
+			}
+
+		});
+		done.get(10, TimeUnit.SECONDS);
+		assertEquals(engine.process("page.html", data), new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertTrue(readOnly.get() > 10);
+	}
+
+}
\ No newline at end of file
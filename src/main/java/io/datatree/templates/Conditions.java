@@ -0,0 +1,341 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import io.datatree.Tree;
+
+/**
+ * Compiled conditions of the conditional tags. The literals are parsed once
+ * (at compile time) to typed constants, and the values are compared on their
+ * native types (without String conversion). The "eq" and "!eq" tags compare
+ * the text of the value with the literal, as they always did (eg. 1.0 does
+ * not equal "1", and the quotes are part of the literal). Usage:
+ *
+ * <pre>
+ * #{eq status 1}...#{end}           equals (as text)
+ * #{!eq status 1}...#{end}          not equals (as text)
+ * #{gt price 100}...#{end}          greater than (also "ge", "lt", "le")
+ * #{in status 1,2,3}...#{end}       member of a set
+ * #{!in status 1 2 3}...#{end}      not a member of a set
+ * #{is enabled}...#{end}            true, non-zero or non-empty value
+ * #{!is enabled}...#{end}           false, zero, empty or missing value
+ * </pre>
+ */
+public final class Conditions {
+
+	// --- FACTORY ---
+
+	/**
+	 * Creates a compiled condition.
+	 *
+	 * @param operator
+	 *            operator (eg. "eq", "gt", "in", "is" or a negated "!eq")
+	 * @param args
+	 *            compile-time arguments (literals)
+	 *
+	 * @return compiled condition, or null if the operator is unknown
+	 */
+	public static final Predicate<Tree> get(String operator, String[] args) {
+		if (operator.startsWith("!")) {
+			Predicate<Tree> condition = get(operator.substring(1), args);
+			return condition == null ? null : condition.negate();
+		}
+		switch (operator) {
+		case "eq":
+		case "equals":
+			return equals(requiredArg(operator, args));
+
+		case "gt":
+			return compare(requiredArg(operator, args), 1, false);
+
+		case "ge":
+			return compare(requiredArg(operator, args), 1, true);
+
+		case "lt":
+			return compare(requiredArg(operator, args), -1, false);
+
+		case "le":
+			return compare(requiredArg(operator, args), -1, true);
+
+		case "in":
+			requiredArg(operator, args);
+			return in(args);
+
+		case "is":
+			return Conditions::isTrue;
+
+		default:
+			return null;
+		}
+	}
+
+	// --- EQUALS ---
+
+	/**
+	 * Creates an "equals" condition. The String form of the value must match
+	 * the literal; integral numbers and Strings are compared without
+	 * conversion.
+	 *
+	 * @param literal
+	 *            literal (eg. "5", "true" or "admin@foo.com")
+	 *
+	 * @return compiled condition
+	 */
+	public static final Predicate<Tree> equals(String literal) {
+		Long integer = null;
+		try {
+			long parsed = Long.parseLong(literal);
+			if (Long.toString(parsed).equals(literal)) {
+				integer = parsed;
+			}
+		} catch (NumberFormatException notNumeric) {
+
+			// Not an integral literal
+		}
+		Long constant = integer;
+		return node -> {
+			if (node == null) {
+				return false;
+			}
+			Object value = node.asObject();
+			if (value instanceof String) {
+				return literal.equals(value);
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short
+					|| value instanceof Byte) {
+				return constant != null && constant == ((Number) value).longValue();
+			}
+			return value != null && literal.equals(node.asString());
+		};
+	}
+
+	// --- COMPARISON ---
+
+	/**
+	 * Creates a "greater than" or a "less than" condition.
+	 *
+	 * @param literal
+	 *            literal (eg. "5" or "abc")
+	 * @param sign
+	 *            1 = greater than, -1 = less than
+	 * @param orEquals
+	 *            true = "greater or equals" / "less or equals"
+	 *
+	 * @return compiled condition
+	 */
+	public static final Predicate<Tree> compare(String literal, int sign, boolean orEquals) {
+		String text = unquote(literal);
+		Object constant = parse(literal);
+		if (constant instanceof Number) {
+			double number = ((Number) constant).doubleValue();
+			return node -> {
+				if (node == null) {
+					return false;
+				}
+				Object value = node.asObject();
+				double d;
+				if (value instanceof Number) {
+					d = ((Number) value).doubleValue();
+				} else if (value instanceof String) {
+					try {
+						d = Double.parseDouble((String) value);
+					} catch (NumberFormatException notNumeric) {
+						return false;
+					}
+				} else {
+					return false;
+				}
+				int result = Double.compare(d, number);
+				return result == 0 ? orEquals : Integer.signum(result) == sign;
+			};
+		}
+		return node -> {
+			if (node == null) {
+				return false;
+			}
+			String value = node.asString();
+			if (value == null) {
+				return false;
+			}
+			int result = value.compareTo(text);
+			return result == 0 ? orEquals : Integer.signum(result) == sign;
+		};
+	}
+
+	// --- SET MEMBERSHIP ---
+
+	/**
+	 * Creates an "in" condition, backed by a precomputed hash set.
+	 *
+	 * @param literals
+	 *            literals (separated by spaces or commas)
+	 *
+	 * @return compiled condition
+	 */
+	public static final Predicate<Tree> in(String[] literals) {
+		HashSet<Object> set = new HashSet<>();
+		for (String literal : literals) {
+			for (String item : literal.split(",")) {
+				if (!item.isEmpty()) {
+					set.add(parse(item));
+					set.add(unquote(item));
+				}
+			}
+		}
+		return node -> {
+			Object key = toKey(node);
+			return key != null && set.contains(key);
+		};
+	}
+
+	// --- BOOLEAN TEST ---
+
+	/**
+	 * Returns true if the value is true, non-zero or non-empty.
+	 *
+	 * @param node
+	 *            node (or null)
+	 *
+	 * @return true, if the value is "truthy"
+	 */
+	public static final boolean isTrue(Tree node) {
+		if (node == null) {
+			return false;
+		}
+		Object value = node.asObject();
+		if (value == null) {
+			return false;
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue() != 0;
+		}
+		if (value instanceof String) {
+			String text = (String) value;
+			return !text.isEmpty() && !"false".equals(text) && !"0".equals(text);
+		}
+		if (value instanceof Collection) {
+			return !((Collection<?>) value).isEmpty();
+		}
+		if (value instanceof Map) {
+			return !((Map<?, ?>) value).isEmpty();
+		}
+		return true;
+	}
+
+	// --- PRIVATE UTILITIES ---
+
+	/**
+	 * Parses a literal to a typed constant (Boolean, Long, Double or String).
+	 */
+	private static final Object parse(String literal) {
+		if ("true".equals(literal)) {
+			return Boolean.TRUE;
+		}
+		if ("false".equals(literal)) {
+			return Boolean.FALSE;
+		}
+		String text = unquote(literal);
+		if (!text.equals(literal) || text.isEmpty()) {
+			return text;
+		}
+		char c = text.charAt(0);
+		if ((c >= '0' && c <= '9') || c == '-' || c == '.') {
+			try {
+				if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1) {
+					return Long.parseLong(text);
+				}
+				return toKey(Double.parseDouble(text));
+			} catch (NumberFormatException notNumeric) {
+
+				// String literal
+			}
+		}
+		return text;
+	}
+
+	private static final String unquote(String literal) {
+		int len = literal.length();
+		if (len > 1) {
+			char c = literal.charAt(0);
+			if ((c == '\'' || c == '"') && literal.charAt(len - 1) == c) {
+				return literal.substring(1, len - 1);
+			}
+		}
+		return literal;
+	}
+
+	/**
+	 * Converts the value of the node to a comparable key (integral numbers are
+	 * converted to Long, other numbers are converted to Double).
+	 */
+	private static final Object toKey(Tree node) {
+		if (node == null) {
+			return null;
+		}
+		Object value = node.asObject();
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof String || value instanceof Boolean || value instanceof Long) {
+			return value;
+		}
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return toKey(((Number) value).doubleValue());
+		}
+		if (value instanceof BigInteger) {
+			BigInteger integer = (BigInteger) value;
+			return integer.bitLength() < 64 ? (Object) integer.longValue() : integer.toString();
+		}
+		if (value instanceof BigDecimal) {
+			BigDecimal decimal = ((BigDecimal) value).stripTrailingZeros();
+			if (decimal.scale() <= 0 && decimal.precision() - decimal.scale() < 19) {
+				return decimal.longValue();
+			}
+			return decimal.doubleValue();
+		}
+		return node.asString();
+	}
+
+	private static final Object toKey(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 9.0E15) {
+			return (long) value;
+		}
+		return value;
+	}
+
+	private static final String requiredArg(String operator, String[] args) {
+		if (args.length == 0) {
+			throw new IllegalArgumentException("Missing value of the \"" + operator + "\" tag!");
+		}
+		return args[0];
+	}
+
+}
\ No newline at end of file
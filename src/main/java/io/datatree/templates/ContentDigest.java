@@ -0,0 +1,77 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utilities of the content hashes, computed during the rendering (see
+ * OutputBuffer and SegmentList).
+ */
+public final class ContentDigest {
+
+	// --- ALGORITHMS ---
+
+	public static final String SHA_256 = "SHA-256";
+
+	public static final String MD5 = "MD5";
+
+	// --- FACTORY ---
+
+	/**
+	 * Creates a new MessageDigest.
+	 *
+	 * @param algorithm
+	 *            name of the algorithm (eg. "SHA-256" or "MD5")
+	 *
+	 * @return new MessageDigest
+	 */
+	public static final MessageDigest create(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException cause) {
+			throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, cause);
+		}
+	}
+
+	// --- ETAG ---
+
+	/**
+	 * Converts a hash to a (strong) HTTP ETag.
+	 *
+	 * @param hash
+	 *            hash of the content
+	 *
+	 * @return quoted hex string (eg. "\"a1b2...\"")
+	 */
+	public static final String toETag(byte[] hash) {
+		char[] chars = new char[hash.length * 2 + 2];
+		chars[0] = '"';
+		int i = 1;
+		for (byte b : hash) {
+			chars[i++] = HEX[(b >> 4) & 0xF];
+			chars[i++] = HEX[b & 0xF];
+		}
+		chars[i] = '"';
+		return new String(chars);
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+}
\ No newline at end of file
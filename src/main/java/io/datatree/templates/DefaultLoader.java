@@ -18,43 +18,98 @@
 package io.datatree.templates;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
- * Simple resource / template loader.
+ * Simple resource / template loader. Files are read with presized NIO reads,
+ * large files are memory-mapped.
  */
 public class DefaultLoader implements ResourceLoader {
 
+	// --- VARIABLES ---
+
+	/**
+	 * Files larger than this size (in bytes) are memory-mapped.
+	 */
+	protected long mappedFileThreshold = 1024 * 1024;
+
+	// --- LOADER METHODS ---
+
 	@Override
 	public String loadTemplate(String templatePath, Charset charset) throws IOException {
+		return loadSource(templatePath, charset).toString();
+	}
+
+	@Override
+	public CharSequence loadSource(String templatePath, Charset charset) throws IOException {
+		return charset.decode(loadBytes(templatePath, charset));
+	}
+
+	@Override
+	public ByteBuffer loadBytes(String templatePath, Charset charset) throws IOException {
 		File file = new File(templatePath);
 		if (file.isFile()) {
-			return readFully(new FileInputStream(file), charset);
+			return readFile(file.toPath());
 		}
 		URL url = getClass().getResource(templatePath);
 		if (url == null) {
-			throw new IOException("Template not found: " + templatePath);
+			throw new TemplateNotFoundException(templatePath);
+		}
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return readFile(Paths.get(url.toURI()));
+			} catch (IOException cause) {
+				throw cause;
+			} catch (Exception invalidURI) {
+
+				// Read as stream
+			}
+		}
+		return ByteBuffer.wrap(readFully(url.openStream()));
+	}
+
+	protected ByteBuffer readFile(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > mappedFileThreshold) {
+				return channel.map(MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+
+				// Read until the end of the file
+			}
+			buffer.flip();
+			return buffer;
 		}
-		return readFully(url.openStream(), charset);
 	}
 
 	protected static final String readFully(InputStream in, Charset charset) throws IOException {
-		byte[] data = new byte[0];
+		return new String(readFully(in), charset);
+	}
+
+	protected static final byte[] readFully(InputStream in) throws IOException {
 		try {
-			byte[] packet = new byte[4096];
+			byte[] data = new byte[Math.max(in.available(), 4096)];
+			int length = 0;
 			int i;
-			int l;
-			while ((i = in.read(packet)) != -1) {
-				l = data.length + i;
-				byte[] s = new byte[l];
-				System.arraycopy(data, 0, s, 0, data.length);
-				System.arraycopy(packet, 0, s, data.length, i);
-				data = s;
+			while ((i = in.read(data, length, data.length - length)) != -1) {
+				length += i;
+				if (length == data.length) {
+					data = Arrays.copyOf(data, data.length * 2);
+				}
 			}
+			return length == data.length ? data : Arrays.copyOf(data, length);
 		} finally {
 			try {
 				if (in != null) {
@@ -63,7 +118,6 @@ public class DefaultLoader implements ResourceLoader {
 			} catch (Exception ingored) {
 			}
 		}
-		return new String(data, charset);
 	}
 
 	@Override
@@ -87,4 +141,14 @@ public class DefaultLoader implements ResourceLoader {
 		return -1;
 	}
 
+	// --- GETTERS AND SETTERS ---
+
+	public long getMappedFileThreshold() {
+		return mappedFileThreshold;
+	}
+
+	public void setMappedFileThreshold(long mappedFileThreshold) {
+		this.mappedFileThreshold = mappedFileThreshold;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,499 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import io.datatree.Tree;
+
+/**
+ * Built-in, thread-safe formatter functions. The formatters are created (and
+ * cached per pattern and locale) when the template is compiled, so the
+ * rendering does not allocate DecimalFormat / SimpleDateFormat instances.
+ * User-defined functions with the same name take precedence. Usage:
+ *
+ * <pre>
+ * #{fn number price}                   -&gt; 1,234.5
+ * #{fn number price 2 de-DE}           -&gt; 1.234,50
+ * #{fn currency price en-US}           -&gt; $1,234.50
+ * #{fn date created}                   -&gt; 2019-03-01T10:00:00+01:00
+ * #{fn date created yyyy.MM.dd hu-HU}  -&gt; 2019.03.01
+ * #{fn bytes size}                     -&gt; 1.5 KB
+ * #{fn truncate title 20}              -&gt; Lorem ipsum dolor si...
+ * </pre>
+ * 
+ * The formatters write plain text. The output of the formatters that can
+ * write arbitrary text ("truncate" and the unformattable dates) is escaped
+ * by the engine, like the variables (see "setEscapeSpecialCharacters").
+ */
+public final class Formatters {
+
+	// --- TEXT FORMATTER ---
+
+	/**
+	 * Formatter which writes arbitrary (not yet escaped) text.
+	 */
+	@FunctionalInterface
+	public static interface TextFormatter extends BiConsumer<StringBuilder, Tree> {
+	}
+
+	// --- CACHED FORMATTERS ---
+
+	/**
+	 * Cached (immutable) formatters by name, pattern and locale.
+	 */
+	private static final ConcurrentHashMap<String, Object> formatters = new ConcurrentHashMap<>();
+
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+			100000000L, 1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+			100000000000000L, 1000000000000000L, 10000000000000000L, 100000000000000000L,
+			1000000000000000000L };
+
+	private static final String[] BYTE_UNITS = { " B", " KB", " MB", " GB", " TB", " PB", " EB" };
+
+	// --- FACTORY ---
+
+	/**
+	 * Creates a built-in formatter function.
+	 *
+	 * @param name
+	 *            name of the function (eg. "number", "currency", "date",
+	 *            "bytes" or "truncate")
+	 * @param args
+	 *            compile-time arguments (pattern, locale, etc.)
+	 *
+	 * @return formatter function, or null if the name is unknown
+	 */
+	public static final BiConsumer<StringBuilder, Tree> get(String name, String[] args) {
+		switch (name) {
+		case "number":
+			if (args.length > 0 && !args[0].isEmpty() && Character.isDigit(args[0].charAt(0))) {
+				return number(intArg(args, 0, -1), localeArg(args, 1));
+			}
+			return number(-1, localeArg(args, 0));
+
+		case "currency":
+			return currency(localeArg(args, 0));
+
+		case "date":
+			return date(args.length > 0 ? args[0] : "iso", localeArg(args, 1),
+					args.length > 2 ? ZoneId.of(args[2]) : ZoneId.systemDefault());
+
+		case "bytes":
+			return bytes(localeArg(args, 0));
+
+		case "truncate":
+			return truncate(intArg(args, 0, 80), args.length > 1 ? args[1] : "...");
+
+		default:
+			return null;
+		}
+	}
+
+	// --- NUMBER FORMATTER ---
+
+	/**
+	 * Creates a locale-specific number formatter.
+	 *
+	 * @param fractionDigits
+	 *            number of fraction digits (-1 = 0...3 digits, as needed, max
+	 *            18)
+	 * @param locale
+	 *            locale of the grouping and decimal separators
+	 *
+	 * @return formatter function
+	 */
+	public static final BiConsumer<StringBuilder, Tree> number(int fractionDigits, Locale locale) {
+		if (fractionDigits < -1 || fractionDigits >= POWERS_OF_TEN.length) {
+			throw new IllegalArgumentException("Invalid number of fraction digits: " + fractionDigits);
+		}
+		NumberStyle style = (NumberStyle) formatters.computeIfAbsent("number|" + locale.toLanguageTag(), key -> {
+			DecimalFormat format = (DecimalFormat) NumberFormat.getNumberInstance(locale);
+			DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+			return new NumberStyle("", "", "-", "", format.getGroupingSize(), symbols.getGroupingSeparator(),
+					symbols.getDecimalSeparator());
+		});
+		boolean fixed = fractionDigits > -1;
+		int digits = fixed ? fractionDigits : 3;
+		return (out, node) -> {
+			if (node != null) {
+				writeNumber(out, node, digits, fixed, style);
+			}
+		};
+	}
+
+	// --- CURRENCY FORMATTER ---
+
+	/**
+	 * Creates a locale-specific currency formatter.
+	 *
+	 * @param locale
+	 *            locale of the currency
+	 *
+	 * @return formatter function
+	 */
+	public static final BiConsumer<StringBuilder, Tree> currency(Locale locale) {
+		NumberStyle style = (NumberStyle) formatters.computeIfAbsent("currency|" + locale.toLanguageTag(), key -> {
+			DecimalFormat format = (DecimalFormat) NumberFormat.getCurrencyInstance(locale);
+			DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+			return new NumberStyle(format.getPositivePrefix(), format.getPositiveSuffix(),
+					format.getNegativePrefix(), format.getNegativeSuffix(), format.getGroupingSize(),
+					symbols.getGroupingSeparator(), symbols.getMonetaryDecimalSeparator(),
+					format.getMaximumFractionDigits());
+		});
+		return (out, node) -> {
+			if (node != null) {
+				writeNumber(out, node, style.fractionDigits, true, style);
+			}
+		};
+	}
+
+	// --- DATE FORMATTER ---
+
+	/**
+	 * Creates a date formatter. The value of the node can be a Date, epoch
+	 * milliseconds or an ISO-8601 String. Values that cannot be formatted
+	 * (eg. a LocalDate with a time pattern) are written as they are (the
+	 * engine escapes them).
+	 *
+	 * @param pattern
+	 *            pattern of the DateTimeFormatter (or "iso", "iso-date",
+	 *            "iso-time", "iso-instant")
+	 * @param locale
+	 *            locale of the names of months and days
+	 * @param zone
+	 *            time-zone of the dates without offset
+	 *
+	 * @return formatter function
+	 */
+	public static final BiConsumer<StringBuilder, Tree> date(String pattern, Locale locale, ZoneId zone) {
+		DateTimeFormatter formatter = (DateTimeFormatter) formatters
+				.computeIfAbsent("date|" + pattern + '|' + locale.toLanguageTag(), key -> {
+					switch (pattern) {
+					case "iso":
+						return DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+					case "iso-date":
+						return DateTimeFormatter.ISO_LOCAL_DATE;
+					case "iso-time":
+						return DateTimeFormatter.ISO_LOCAL_TIME;
+					case "iso-instant":
+						return DateTimeFormatter.ISO_INSTANT;
+					default:
+						return DateTimeFormatter.ofPattern(pattern, locale);
+					}
+				});
+		return (TextFormatter) (out, node) -> {
+			if (node == null) {
+				return;
+			}
+			int length = out.length();
+			try {
+				TemporalAccessor temporal = toTemporal(node.asObject(), zone);
+				if (temporal != null) {
+					formatter.formatTo(temporal, out);
+				}
+			} catch (DateTimeException | NumberFormatException invalid) {
+				out.setLength(length);
+				String text = node.asString();
+				if (text != null) {
+					out.append(text);
+				}
+			}
+		};
+	}
+
+	// --- BYTE SIZE FORMATTER ---
+
+	/**
+	 * Creates a byte size formatter (eg. "512 B", "1.5 KB", "2.0 MB").
+	 *
+	 * @param locale
+	 *            locale of the decimal separator
+	 *
+	 * @return formatter function
+	 */
+	public static final BiConsumer<StringBuilder, Tree> bytes(Locale locale) {
+		char decimalSeparator = DecimalFormatSymbols.getInstance(locale).getDecimalSeparator();
+		return (out, node) -> {
+			if (node == null) {
+				return;
+			}
+			Long value = node.asLong();
+			if (value == null) {
+				return;
+			}
+			long size = value;
+			if (size < 1024 && size > -1024) {
+				out.append(size).append(BYTE_UNITS[0]);
+				return;
+			}
+			int unit = 0;
+			double scaled = size;
+			while ((scaled >= 1024 || scaled <= -1024) && unit < BYTE_UNITS.length - 1) {
+				scaled /= 1024;
+				unit++;
+			}
+			long tenths = (long) Math.rint(scaled * 10);
+			if (tenths < 0) {
+				out.append('-');
+				tenths = -tenths;
+			}
+			out.append(tenths / 10).append(decimalSeparator).append((char) ('0' + tenths % 10));
+			out.append(BYTE_UNITS[unit]);
+		};
+	}
+
+	// --- TEXT TRUNCATION ---
+
+	/**
+	 * Creates a text truncator. The engine escapes the special characters of
+	 * the text (if the "escapeSpecialCharacters" property is true).
+	 *
+	 * @param maxLength
+	 *            maximum number of characters
+	 * @param ellipsis
+	 *            characters to append to the truncated text
+	 *
+	 * @return formatter function
+	 */
+	public static final BiConsumer<StringBuilder, Tree> truncate(int maxLength, String ellipsis) {
+		return (TextFormatter) (out, node) -> {
+			if (node == null) {
+				return;
+			}
+			String text = node.asString();
+			if (text == null) {
+				return;
+			}
+			if (text.length() <= maxLength) {
+				out.append(text);
+				return;
+			}
+			int end = maxLength;
+			if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+				end--;
+			}
+			out.append(text, 0, end).append(ellipsis);
+		};
+	}
+
+	// --- PRIVATE UTILITIES ---
+
+	private static final void writeNumber(StringBuilder out, Tree node, int digits, boolean fixed,
+			NumberStyle style) {
+		Object value = node.asObject();
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			long integer = ((Number) value).longValue();
+			if (integer != Long.MIN_VALUE) {
+				boolean negative = integer < 0;
+				out.append(negative ? style.negativePrefix : style.positivePrefix);
+				writeGrouped(out, negative ? -integer : integer, style);
+				if (fixed) {
+					writeFraction(out, 0, digits, style);
+				}
+				out.append(negative ? style.negativeSuffix : style.positiveSuffix);
+				return;
+			}
+		}
+		double number;
+		if (value instanceof Number && !(value instanceof BigDecimal)) {
+			number = ((Number) value).doubleValue();
+		} else {
+			BigDecimal decimal = node.asBigDecimal();
+			if (decimal == null) {
+				return;
+			}
+			number = decimal.doubleValue();
+		}
+		if (Double.isNaN(number) || Double.isInfinite(number)) {
+			out.append(number);
+			return;
+		}
+		boolean negative = number < 0;
+		double abs = Math.abs(number);
+		long scale = POWERS_OF_TEN[digits];
+		long integer;
+		long fraction;
+		if (abs * scale < 9.0E15) {
+			long scaled = (long) Math.rint(abs * scale);
+			integer = scaled / scale;
+			fraction = scaled % scale;
+		} else {
+
+			// Too large for the fast path
+			BigDecimal decimal = BigDecimal.valueOf(abs).setScale(digits, RoundingMode.HALF_EVEN);
+			if (decimal.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0) {
+				out.append(negative ? style.negativePrefix : style.positivePrefix);
+				out.append(decimal.toPlainString());
+				out.append(negative ? style.negativeSuffix : style.positiveSuffix);
+				return;
+			}
+			integer = decimal.longValue();
+			fraction = decimal.remainder(BigDecimal.ONE).movePointRight(digits).longValue();
+		}
+		int fractionDigits = digits;
+		if (!fixed) {
+			while (fractionDigits > 0 && fraction % 10 == 0) {
+				fraction /= 10;
+				fractionDigits--;
+			}
+		}
+		if (negative && integer == 0 && fraction == 0) {
+			negative = false;
+		}
+		out.append(negative ? style.negativePrefix : style.positivePrefix);
+		writeGrouped(out, integer, style);
+		writeFraction(out, fraction, fractionDigits, style);
+		out.append(negative ? style.negativeSuffix : style.positiveSuffix);
+	}
+
+	private static final void writeGrouped(StringBuilder out, long value, NumberStyle style) {
+		int length = 1;
+		while (length < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[length]) {
+			length++;
+		}
+		for (int i = length - 1; i >= 0; i--) {
+			out.append((char) ('0' + (value / POWERS_OF_TEN[i]) % 10));
+			if (i > 0 && style.groupingSize > 0 && i % style.groupingSize == 0) {
+				out.append(style.groupingSeparator);
+			}
+		}
+	}
+
+	private static final void writeFraction(StringBuilder out, long fraction, int digits, NumberStyle style) {
+		if (digits < 1) {
+			return;
+		}
+		out.append(style.decimalSeparator);
+		for (int i = digits - 1; i >= 0; i--) {
+			out.append((char) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+		}
+	}
+
+	private static final TemporalAccessor toTemporal(Object value, ZoneId zone) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Date) {
+			return Instant.ofEpochMilli(((Date) value).getTime()).atZone(zone);
+		}
+		if (value instanceof Number) {
+			return Instant.ofEpochMilli(((Number) value).longValue()).atZone(zone);
+		}
+		if (value instanceof Instant) {
+			return ((Instant) value).atZone(zone);
+		}
+		if (value instanceof LocalDateTime) {
+			return ((LocalDateTime) value).atZone(zone);
+		}
+		if (value instanceof TemporalAccessor) {
+			return (TemporalAccessor) value;
+		}
+		String text = String.valueOf(value).trim();
+		if (text.isEmpty()) {
+			return null;
+		}
+		char c = text.charAt(0);
+		if (c >= '0' && c <= '9' && text.indexOf('-') == -1) {
+			return Instant.ofEpochMilli(Long.parseLong(text)).atZone(zone);
+		}
+		if (text.length() == 10) {
+			return LocalDate.parse(text).atStartOfDay(zone);
+		}
+		if (text.endsWith("Z") || text.lastIndexOf('+') > 9 || text.lastIndexOf('-') > 9) {
+			if (text.indexOf('[') > -1) {
+				return ZonedDateTime.parse(text);
+			}
+			return OffsetDateTime.parse(text);
+		}
+		return LocalDateTime.parse(text).atZone(zone);
+	}
+
+	private static final int intArg(String[] args, int index, int defaultValue) {
+		if (args.length <= index) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(args[index]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid numeric argument: " + args[index]);
+		}
+	}
+
+	private static final Locale localeArg(String[] args, int index) {
+		if (args.length <= index) {
+			return Locale.getDefault();
+		}
+		return Locale.forLanguageTag(args[index]);
+	}
+
+	// --- NUMBER STYLE ---
+
+	/**
+	 * Precomputed, immutable symbols of a number or currency format.
+	 */
+	private static final class NumberStyle {
+
+		private final String positivePrefix;
+		private final String positiveSuffix;
+		private final String negativePrefix;
+		private final String negativeSuffix;
+		private final int groupingSize;
+		private final char groupingSeparator;
+		private final char decimalSeparator;
+		private final int fractionDigits;
+
+		private NumberStyle(String positivePrefix, String positiveSuffix, String negativePrefix,
+				String negativeSuffix, int groupingSize, char groupingSeparator, char decimalSeparator) {
+			this(positivePrefix, positiveSuffix, negativePrefix, negativeSuffix, groupingSize, groupingSeparator,
+					decimalSeparator, 0);
+		}
+
+		private NumberStyle(String positivePrefix, String positiveSuffix, String negativePrefix,
+				String negativeSuffix, int groupingSize, char groupingSeparator, char decimalSeparator,
+				int fractionDigits) {
+			this.positivePrefix = positivePrefix;
+			this.positiveSuffix = positiveSuffix;
+			this.negativePrefix = negativePrefix;
+			this.negativeSuffix = negativeSuffix;
+			this.groupingSize = groupingSize;
+			this.groupingSeparator = groupingSeparator;
+			this.decimalSeparator = decimalSeparator;
+			this.fractionDigits = fractionDigits;
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -17,7 +17,9 @@
  */
 package io.datatree.templates;
 
+import java.nio.ByteBuffer;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import io.datatree.Tree;
 
@@ -47,6 +49,42 @@ public class Fragment {
 	 * User-defined, optional function.
 	 */
 	public BiConsumer<StringBuilder, Tree> function;
+
+	/**
+	 * Compiled condition of the conditional tags.
+	 */
+	public Predicate<Tree> condition;
+
+	/**
+	 * Encoded content of the static text (shared, read-only).
+	 */
+	public volatile ByteBuffer bytes;
+
+	/**
+	 * Handle of the off-heap static text (the "content" is null). Set before
+	 * the fragment is shared, never changed.
+	 */
+	public OffHeapStore.Segment segment;
+
+	/**
+	 * Precompressed (GZIP) output of a fully static template.
+	 */
+	public byte[] compressed;
+
+	/**
+	 * Data-dependency manifest of the template.
+	 */
+	public TemplateManifest manifest;
+
+	/**
+	 * Top-level regions of the template (see "TemplateEngine.getRegions").
+	 */
+	public Fragment[] regions;
+
+	/**
+	 * Absolute paths of the layouts of the template (parent first).
+	 */
+	public String[] ancestors;
 	
 	// --- SUB-FRAGMENTS ---
 
@@ -54,5 +92,66 @@ public class Fragment {
 	 * Array of sub-fragments.
 	 */
 	public Fragment[] children;
+
+	// --- COPY ---
+
+	/**
+	 * Creates a shallow copy of the fragment (without the cached, lazily
+	 * computed values). The encoded static text is shared (the "content" of
+	 * an off-heap text is null, so the copy needs its "bytes" and "segment");
+	 * the caller must clear "bytes" if it changes the "content" of the copy.
+	 * 
+	 * @return copy of the fragment
+	 */
+	public Fragment copy() {
+		Fragment copy = new Fragment();
+		copy.type = type;
+		copy.arg = arg;
+		copy.content = content;
+		copy.bytes = bytes;
+		copy.segment = segment;
+		copy.function = function;
+		copy.condition = condition;
+		copy.children = children;
+		return copy;
+	}
+
+	// --- SIZE ESTIMATION ---
+
+	/**
+	 * Returns the estimated retained size of the fragment (including its
+	 * sub-fragments), in bytes.
+	 * 
+	 * @return estimated size
+	 */
+	public long estimateSize() {
+		long size = 64;
+		if (arg != null) {
+			size += 40 + 2L * arg.length();
+		}
+		if (content != null) {
+			size += 40 + 2L * content.length();
+		}
+		if (segment != null) {
+
+			// Off-heap text (only the handles are on the heap)
+			size += 96;
+		} else if (bytes != null) {
+			size += 64 + bytes.capacity();
+		}
+		if (compressed != null) {
+			size += 16 + compressed.length;
+		}
+		if (ancestors != null) {
+			size += 16 + 4L * ancestors.length;
+		}
+		if (children != null) {
+			size += 16 + 4L * children.length;
+			for (Fragment child : children) {
+				size += child.estimateSize();
+			}
+		}
+		return size;
+	}
 	
 }
\ No newline at end of file
@@ -17,6 +17,8 @@
  */
 package io.datatree.templates;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -29,46 +31,66 @@ import io.datatree.Tree;
  */
 public final class FragmentBuilder implements FragmentTypes {
 
-	public static final Fragment compile(String template, String templatePath, long lastModified,
+	public static final Fragment compile(CharSequence template, String templatePath, long lastModified,
 			Map<String, BiConsumer<StringBuilder, Tree>> functions) {
+		return compile(template, templatePath, lastModified, functions, null);
+	}
+
+	public static final Fragment compile(CharSequence template, String templatePath, long lastModified,
+			Map<String, BiConsumer<StringBuilder, Tree>> functions, Map<String, Fragment> macros) {
 		Fragment root = new Fragment();
-		compile(template, root, functions);
+		compile(template, 0, root, functions, macros == null ? new HashMap<>() : new HashMap<>(macros));
+		assignFragmentIds(root, "");
 		root.arg = templatePath;
 		root.content = Long.toString(lastModified);
 		return root;
 	}
 
-	private static final int compile(String template, Fragment command,
-			Map<String, BiConsumer<StringBuilder, Tree>> functions) {
-		int start = 0;
-		int end = template.indexOf("#{");
+	/**
+	 * Compiles the macros ("#{macro name(a, b)}...#{end}") of a macro library.
+	 * The content outside the macros is ignored.
+	 */
+	public static final Map<String, Fragment> compileMacros(CharSequence source,
+			Map<String, BiConsumer<StringBuilder, Tree>> functions, Map<String, Fragment> macros) {
+		HashMap<String, Fragment> compiled = macros == null ? new HashMap<>() : new HashMap<>(macros);
+		compile(source, 0, new Fragment(), functions, compiled);
+		return compiled;
+	}
+
+	private static final int compile(CharSequence template, int offset, Fragment command,
+			Map<String, BiConsumer<StringBuilder, Tree>> functions, HashMap<String, Fragment> macros) {
+		int length = template.length();
+		int start = offset;
+		int end = indexOf(template, "#{", start);
 		LinkedList<Fragment> treeCommands = new LinkedList<>();
 		for (;;) {
 			Fragment subPrint = new Fragment();
 			if (end == -1) {
-				end = template.length();
+				end = length;
 			}
 			if (start != end) {
 				subPrint.type = STATIC_TEXT;
-				subPrint.content = template.substring(start, end);
+				subPrint.content = template.subSequence(start, end).toString();
 				treeCommands.add(subPrint);
 			}
-			if (end == template.length()) {
+			if (end == length) {
 				break;
 			}
 			start = end;
-			if (end != template.length()) {
+			if (end != length) {
 				Fragment subCommand = new Fragment();
-				start = template.indexOf("}", end) + 1;
-				String commandString = template.substring(end + 2, start).trim();
+				start = indexOf(template, "}", end) + 1;
+				if (start == 0) {
+					throw new IllegalArgumentException("Missing \"}\" character after position " + end + "!");
+				}
+				String commandString = template.subSequence(end + 2, start).toString().trim();
 				if (commandString.endsWith("}")) {
 					commandString = commandString.substring(0, commandString.length() - 1);
 				}
 				StringTokenizer st = new StringTokenizer(commandString);
 				String commandType = st.nextToken().toLowerCase();
-				String subTemplate = template.substring(start);
 				boolean endTag = false;
-				if ("in".equals(commandType) || "include".equals(commandType)) {
+				if (("in".equals(commandType) && st.countTokens() == 1) || "include".equals(commandType)) {
 
 					// #{in path} or #{include path}
 					// File insertion (can be relative path)
@@ -81,7 +103,7 @@ public final class FragmentBuilder implements FragmentTypes {
 					// It is true that such an element exists
 					subCommand.type = CONDITION_TAG_EXISTS;
 					subCommand.arg = st.nextToken();
-					start += compile(subTemplate, subCommand, functions);
+					start = compile(template, start, subCommand, functions, macros);
 
 				} else if ("!ex".equals(commandType) || "!exists".equals(commandType)) {
 
@@ -89,7 +111,7 @@ public final class FragmentBuilder implements FragmentTypes {
 					// It is true that such an element does not exist
 					subCommand.type = CONDITION_TAG_NOT_EXISTS;
 					subCommand.arg = st.nextToken();
-					start += compile(subTemplate, subCommand, functions);
+					start = compile(template, start, subCommand, functions, macros);
 
 				} else if ("eq".equals(commandType) || "equals".equals(commandType)) {
 
@@ -99,7 +121,8 @@ public final class FragmentBuilder implements FragmentTypes {
 					subCommand.type = CONDITION_TAG_VALUE_EQUALS;
 					subCommand.arg = st.nextToken();
 					subCommand.content = st.nextToken();
-					start += compile(subTemplate, subCommand, functions);
+					subCommand.condition = Conditions.equals(subCommand.content);
+					start = compile(template, start, subCommand, functions, macros);
 
 				} else if ("!eq".equals(commandType) || "!equals".equals(commandType)) {
 
@@ -109,7 +132,22 @@ public final class FragmentBuilder implements FragmentTypes {
 					subCommand.type = CONDITION_TAG_VALUE_NOT_EQUALS;
 					subCommand.arg = st.nextToken();
 					subCommand.content = st.nextToken();
-					start += compile(subTemplate, subCommand, functions);
+					subCommand.condition = Conditions.equals(subCommand.content);
+					start = compile(template, start, subCommand, functions, macros);
+
+				} else if (st.hasMoreTokens() && ("gt".equals(commandType) || "ge".equals(commandType)
+						|| "lt".equals(commandType) || "le".equals(commandType) || "in".equals(commandType)
+						|| "!in".equals(commandType) || "is".equals(commandType) || "!is".equals(commandType))) {
+
+					// #{gt variable 5}, #{in variable 1,2,3} or #{is variable}...#{end}
+					// It is true that the compiled expression matches the value
+					// of the variable ("in" with one parameter is an include)
+					subCommand.type = CONDITION_TAG_EXPRESSION;
+					subCommand.arg = st.nextToken();
+					String[] args = nextTokens(st);
+					subCommand.content = commandType + ' ' + String.join(" ", args);
+					subCommand.condition = Conditions.get(commandType, args);
+					start = compile(template, start, subCommand, functions, macros);
 
 				} else if ("fn".equals(commandType) || "function".equals(commandType)) {
 
@@ -121,6 +159,12 @@ public final class FragmentBuilder implements FragmentTypes {
 						subCommand.content = st.nextToken();
 					}
 					subCommand.function = functions.get(subCommand.arg);
+					if (subCommand.function == null) {
+
+						// #{fn number price 2 en-US}
+						// Built-in formatter with compile-time arguments
+						subCommand.function = Formatters.get(subCommand.arg, nextTokens(st));
+					}
 					if (subCommand.function == null) {
 						throw new IllegalArgumentException("Unknown function: " + subCommand.arg);
 					}
@@ -139,7 +183,86 @@ public final class FragmentBuilder implements FragmentTypes {
 						// Colon is optional
 						subCommand.arg = st.nextToken();
 					}
-					start += compile(subTemplate, subCommand, functions);
+					start = compile(template, start, subCommand, functions, macros);
+
+				} else if ("async".equals(commandType)) {
+
+					// #{async}...#{end}
+					// Block that can be rendered later into a placeholder
+					subCommand.type = ASYNC_BLOCK;
+					start = compile(template, start, subCommand, functions, macros);
+
+				} else if ("esi".equals(commandType)) {
+
+					// #{esi}...#{end} or #{esi name}...#{end}
+					// Personalized block (an ESI placeholder in ESI mode)
+					subCommand.type = ESI_BLOCK;
+					if (st.hasMoreTokens()) {
+						subCommand.arg = st.nextToken();
+						subCommand.content = subCommand.arg;
+					}
+					start = compile(template, start, subCommand, functions, macros);
+
+				} else if ("extends".equals(commandType)) {
+
+					// #{extends path}
+					// Layout of the template (can be relative path)
+					subCommand.type = EXTENDS;
+					subCommand.arg = st.nextToken().replace('\\', '/');
+
+				} else if ("block".equals(commandType)) {
+
+					// #{block name}...#{end}
+					// Named block of a layout (can be overridden)
+					subCommand.type = BLOCK;
+					subCommand.content = st.nextToken();
+					start = compile(template, start, subCommand, functions, macros);
+
+				} else if ("macro".equals(commandType) && st.hasMoreTokens()) {
+
+					// #{macro name(a, b)}...#{end}
+					// Macro definition (expanded by the "call" tags)
+					String[] signature = commandString.substring(commandType.length()).trim().split("[(),\\s]+");
+					String name = signature[0];
+					subCommand.type = MACRO;
+					subCommand.content = name;
+					subCommand.arg = String.join(",", Arrays.copyOfRange(signature, 1, signature.length));
+					start = compile(template, start, subCommand, functions, macros);
+					macros.put(name, subCommand);
+					end = indexOf(template, "#{", start);
+					continue;
+
+				} else if ("call".equals(commandType) && st.hasMoreTokens()) {
+
+					// #{call name variable "literal"}
+					// Inline expansion of a macro (literals are not escaped)
+					String name = st.nextToken();
+					Fragment macro = macros.get(name);
+					if (macro == null) {
+						throw new IllegalArgumentException("Unknown macro: " + name);
+					}
+					String[] params = macro.arg.isEmpty() ? new String[0] : macro.arg.split(",");
+					String[] args = splitArguments(
+							commandString.substring(commandType.length()).trim().substring(name.length()));
+					if (params.length != args.length) {
+						throw new IllegalArgumentException("Macro \"" + name + "\" requires " + params.length
+								+ " arguments (called with " + args.length + ")!");
+					}
+					HashMap<String, String> bindings = new HashMap<>();
+					for (int i = 0; i < params.length; i++) {
+						bindings.put(params[i], args[i]);
+					}
+					for (Fragment child : macro.children) {
+						treeCommands.add(expand(child, bindings));
+					}
+					end = indexOf(template, "#{", start);
+					continue;
+
+				} else if ("flush".equals(commandType)) {
+
+					// #{flush}
+					// Sends the rendered part to the client (streaming mode)
+					subCommand.type = FLUSH;
 
 				} else if ("end".equals(commandType)) {
 
@@ -164,7 +287,7 @@ public final class FragmentBuilder implements FragmentTypes {
 					break;
 				}
 				treeCommands.add(subCommand);
-				end = template.indexOf("#{", start);
+				end = indexOf(template, "#{", start);
 			}
 		}
 		command.children = new Fragment[treeCommands.size()];
@@ -172,4 +295,162 @@ public final class FragmentBuilder implements FragmentTypes {
 		return start;
 	}
 
+	/**
+	 * Copies a fragment of a macro, and binds the parameters to the arguments
+	 * of the "call" tag. The literal arguments are inserted as static text:
+	 * they are part of the template source (like the body of the macro), so
+	 * they are not escaped, even if "escapeSpecialCharacters" is enabled.
+	 */
+	private static final Fragment expand(Fragment command, HashMap<String, String> bindings) {
+		if (command.type == STATIC_TEXT) {
+			return command;
+		}
+		Fragment copy = command.copy();
+		switch (command.type) {
+		case INSERTABLE_VARIABLE:
+			String literal = bindings.get(command.arg);
+			if (literal != null && isLiteral(literal)) {
+				copy.type = STATIC_TEXT;
+				copy.arg = null;
+				copy.content = literal.substring(1, literal.length() - 1);
+				return copy;
+			}
+			copy.arg = bind(command.arg, bindings);
+			break;
+
+		case FUNCTION:
+			copy.content = bind(command.content, bindings);
+			break;
+
+		case FOR_CYCLE:
+			copy.arg = bind(command.arg, bindings);
+			if (bindings.containsKey(command.content)) {
+
+				// The loop variable hides the parameter
+				bindings = new HashMap<>(bindings);
+				bindings.remove(command.content);
+			}
+			break;
+
+		case CONDITION_TAG_EXISTS:
+		case CONDITION_TAG_NOT_EXISTS:
+		case CONDITION_TAG_VALUE_EQUALS:
+		case CONDITION_TAG_VALUE_NOT_EQUALS:
+		case CONDITION_TAG_EXPRESSION:
+			copy.arg = bind(command.arg, bindings);
+			break;
+
+		default:
+			break;
+		}
+		if (command.children != null) {
+			copy.children = new Fragment[command.children.length];
+			for (int i = 0; i < copy.children.length; i++) {
+				copy.children[i] = expand(command.children[i], bindings);
+			}
+		}
+		return copy;
+	}
+
+	private static final String bind(String path, HashMap<String, String> bindings) {
+		if (path == null) {
+			return null;
+		}
+		for (Map.Entry<String, String> binding : bindings.entrySet()) {
+			String param = binding.getKey();
+			if (path.startsWith(param) && (path.length() == param.length() || path.charAt(param.length()) == '.'
+					|| path.charAt(param.length()) == '[')) {
+				if (isLiteral(binding.getValue())) {
+					throw new IllegalArgumentException(
+							"Literal argument cannot be used as data path: " + binding.getValue());
+				}
+				return binding.getValue() + path.substring(param.length());
+			}
+		}
+		return path;
+	}
+
+	private static final boolean isLiteral(String arg) {
+		return arg.length() > 1 && (arg.charAt(0) == '"' || arg.charAt(0) == '\'')
+				&& arg.charAt(arg.length() - 1) == arg.charAt(0);
+	}
+
+	/**
+	 * Splits the arguments of a "call" tag (quoted literals can contain
+	 * spaces).
+	 */
+	private static final String[] splitArguments(String text) {
+		LinkedList<String> args = new LinkedList<>();
+		StringBuilder arg = new StringBuilder();
+		char quote = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quote == 0 && Character.isWhitespace(c)) {
+				if (arg.length() > 0) {
+					args.add(arg.toString());
+					arg.setLength(0);
+				}
+				continue;
+			}
+			if (c == '"' || c == '\'') {
+				if (quote == 0 && arg.length() == 0) {
+					quote = c;
+				} else if (quote == c) {
+					quote = 0;
+				}
+			}
+			arg.append(c);
+		}
+		if (arg.length() > 0) {
+			args.add(arg.toString());
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	/**
+	 * Assigns stable IDs (positions in the Fragment tree, eg. "3-0") to the
+	 * unnamed ESI blocks.
+	 */
+	private static final void assignFragmentIds(Fragment command, String prefix) {
+		if (command.children == null) {
+			return;
+		}
+		for (int i = 0; i < command.children.length; i++) {
+			Fragment child = command.children[i];
+			String id = prefix + i;
+			if (child.type == ESI_BLOCK && child.content == null) {
+				child.content = id;
+			}
+			assignFragmentIds(child, id + '-');
+		}
+	}
+
+	private static final int indexOf(CharSequence text, String str, int from) {
+		if (text instanceof String) {
+			return ((String) text).indexOf(str, from);
+		}
+		char first = str.charAt(0);
+		int max = text.length() - str.length();
+		for (int i = from; i <= max; i++) {
+			if (text.charAt(i) == first) {
+				int n = 1;
+				while (n < str.length() && text.charAt(i + n) == str.charAt(n)) {
+					n++;
+				}
+				if (n == str.length()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static final String[] nextTokens(StringTokenizer st) {
+		String[] tokens = new String[st.countTokens()];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = st.nextToken();
+		}
+		return tokens;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,308 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import io.datatree.Tree;
+
+/**
+ * Content-addressed pool of the compiled templates. Templates with the same
+ * source are compiled once, and the identical sub-fragments (eg. the static
+ * texts, with their encoded buffers) of different templates are shared. The
+ * pooled fragments are referenced weakly, they are released when no cached
+ * template uses them.
+ */
+public class FragmentPool implements FragmentTypes {
+
+	// --- VARIABLES ---
+
+	/**
+	 * Shared sub-fragments.
+	 */
+	protected final ConcurrentHashMap<SharedFragment, SharedFragment> fragments = new ConcurrentHashMap<>();
+
+	/**
+	 * Shared fragment arrays of the compiled templates (by source hash).
+	 */
+	protected final ConcurrentHashMap<String, SharedTemplate> templates = new ConcurrentHashMap<>();
+
+	/**
+	 * Queue of the released entries.
+	 */
+	protected final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	// --- COMPILER ---
+
+	/**
+	 * Compiles a template, or reuses an already compiled template with the
+	 * same source.
+	 * 
+	 * @param source
+	 *            source of the template
+	 * @param templatePath
+	 *            path of the template
+	 * @param lastModified
+	 *            last modification time of the source
+	 * @param functions
+	 *            user-defined functions
+	 * 
+	 * @return compiled template
+	 */
+	public Fragment compile(CharSequence source, String templatePath, long lastModified,
+			Map<String, BiConsumer<StringBuilder, Tree>> functions) {
+		return compile(source, templatePath, lastModified, functions, null, null);
+	}
+
+	/**
+	 * Compiles a template, or reuses an already compiled template with the
+	 * same source.
+	 * 
+	 * @param source
+	 *            source of the template
+	 * @param templatePath
+	 *            path of the template
+	 * @param lastModified
+	 *            last modification time of the source
+	 * @param functions
+	 *            user-defined functions
+	 * @param macros
+	 *            shared macros (or null)
+	 * @param initializer
+	 *            optional initializer of the newly compiled template, called
+	 *            before its fragments are shared (eg. "OffHeapStore.encode")
+	 * 
+	 * @return compiled template
+	 */
+	public Fragment compile(CharSequence source, String templatePath, long lastModified,
+			Map<String, BiConsumer<StringBuilder, Tree>> functions, Map<String, Fragment> macros,
+			Consumer<Fragment> initializer) {
+		purge();
+		MessageDigest digest = ContentDigest.create(ContentDigest.SHA_256);
+		String key = ContentDigest.toETag(digest.digest(source.toString().getBytes(StandardCharsets.UTF_8)));
+		SharedTemplate shared = templates.get(key);
+		Fragment[] children = shared == null ? null : shared.get();
+		if (children == null) {
+			Fragment compiled = FragmentBuilder.compile(source, templatePath, lastModified, functions, macros);
+			if (initializer != null) {
+				initializer.accept(compiled);
+			}
+			if (intern(compiled, digest)) {
+				templates.put(key, new SharedTemplate(key, compiled.children, queue));
+			}
+			return compiled;
+		}
+		Fragment root = new Fragment();
+		root.children = children;
+		root.arg = templatePath;
+		root.content = Long.toString(lastModified);
+		return root;
+	}
+
+	/**
+	 * Replaces the sub-fragments of a fragment with the pooled, identical
+	 * instances.
+	 * 
+	 * @param command
+	 *            parent fragment
+	 * @param digest
+	 *            hash of the static texts
+	 * 
+	 * @return true, if the fragment can be shared
+	 */
+	protected boolean intern(Fragment command, MessageDigest digest) {
+		boolean shareable = command.type != INSERTABLE_TEMPLATE_FILE || isAbsolute(command.arg);
+		if (command.children != null) {
+			for (int i = 0; i < command.children.length; i++) {
+				Fragment child = command.children[i];
+				if (intern(child, digest)) {
+					command.children[i] = share(child, digest);
+				} else {
+					shareable = false;
+				}
+			}
+		}
+		return shareable;
+	}
+
+	protected Fragment share(Fragment fragment, MessageDigest digest) {
+		byte[] hash = null;
+		if (fragment.type == STATIC_TEXT) {
+			if (fragment.content == null) {
+
+				// Encoded (off-heap) text
+				digest.update(fragment.bytes.duplicate());
+				hash = digest.digest();
+			} else {
+				hash = digest.digest(fragment.content.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		SharedFragment key = new SharedFragment(fragment, hash, queue);
+		for (;;) {
+			SharedFragment existing = fragments.putIfAbsent(key, key);
+			if (existing == null) {
+				return fragment;
+			}
+			Fragment shared = existing.get();
+			if (shared != null) {
+				return shared;
+			}
+			fragments.remove(existing);
+		}
+	}
+
+	/**
+	 * Relative includes are resolved by the path of the template, they are not
+	 * shared.
+	 */
+	protected boolean isAbsolute(String path) {
+		return path.startsWith("/") || path.indexOf(":/") != -1;
+	}
+
+	// --- MAINTENANCE ---
+
+	/**
+	 * Removes the released entries.
+	 */
+	public void purge() {
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null) {
+			if (reference instanceof SharedTemplate) {
+				SharedTemplate template = (SharedTemplate) reference;
+				templates.remove(template.key, template);
+			} else {
+				fragments.remove(reference);
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries (eg. when the user-defined functions are changed).
+	 */
+	public void clear() {
+		fragments.clear();
+		templates.clear();
+	}
+
+	/**
+	 * Returns the number of the pooled sub-fragments.
+	 * 
+	 * @return number of shared fragments
+	 */
+	public int size() {
+		purge();
+		return fragments.size();
+	}
+
+	// --- ENTRIES ---
+
+	protected static final class SharedFragment extends WeakReference<Fragment> {
+
+		protected final int hash;
+
+		/**
+		 * Hash of the static text (the text can be moved off-heap).
+		 */
+		protected final byte[] text;
+
+		protected SharedFragment(Fragment fragment, byte[] text, ReferenceQueue<Object> queue) {
+			super(fragment, queue);
+			this.text = text;
+			int h = fragment.type;
+			h = 31 * h + Objects.hashCode(fragment.arg);
+			h = 31 * h + (text == null ? Objects.hashCode(fragment.content) : Arrays.hashCode(text));
+			h = 31 * h + System.identityHashCode(fragment.function);
+			if (fragment.children != null) {
+				for (Fragment child : fragment.children) {
+					h = 31 * h + System.identityHashCode(child);
+				}
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		/**
+		 * Fragments are equal if their arguments, functions and (already
+		 * pooled) sub-fragments are the same. The conditions are compiled from
+		 * the arguments.
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof SharedFragment) || ((SharedFragment) obj).hash != hash) {
+				return false;
+			}
+			SharedFragment other = (SharedFragment) obj;
+			Fragment a = get();
+			Fragment b = other.get();
+			if (a == null || b == null) {
+				return false;
+			}
+			if (a.type != b.type || a.function != b.function || !Objects.equals(a.arg, b.arg)) {
+				return false;
+			}
+			if (text != null || other.text != null) {
+				return Arrays.equals(text, other.text);
+			}
+			if (!Objects.equals(a.content, b.content)) {
+				return false;
+			}
+			if (a.children == null || b.children == null) {
+				return a.children == b.children;
+			}
+			if (a.children.length != b.children.length) {
+				return false;
+			}
+			for (int i = 0; i < a.children.length; i++) {
+				if (a.children[i] != b.children[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	protected static final class SharedTemplate extends WeakReference<Fragment[]> {
+
+		protected final String key;
+
+		protected SharedTemplate(String key, Fragment[] children, ReferenceQueue<Object> queue) {
+			super(children, queue);
+			this.key = key;
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -51,5 +51,26 @@ public interface FragmentTypes {
 	
 	// #{fn name variable}
 	public static final byte FUNCTION = 9;
+
+	// #{gt variable value}, #{in variable values}, #{is variable}
+	public static final byte CONDITION_TAG_EXPRESSION = 10;
+
+	// #{async}
+	public static final byte ASYNC_BLOCK = 11;
+
+	// #{flush}
+	public static final byte FLUSH = 12;
+
+	// #{esi}...#{end} or #{esi name}...#{end}
+	public static final byte ESI_BLOCK = 13;
+
+	// #{extends path}
+	public static final byte EXTENDS = 14;
+
+	// #{block name}...#{end}
+	public static final byte BLOCK = 15;
+
+	// #{macro name(a, b)}...#{end} (expanded at compile time)
+	public static final byte MACRO = 16;
 	
 }
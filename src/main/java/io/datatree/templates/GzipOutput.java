@@ -0,0 +1,186 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * GZIP-compressing OutputStream with a pooled, reusable Deflater. The
+ * "flush" method flushes the compressed data (SYNC_FLUSH), so the
+ * progressive flushing works with compressed output too. The "finish" method
+ * writes the GZIP trailer and returns the Deflater to the pool; the
+ * underlying stream is not closed.
+ */
+public class GzipOutput extends DeflaterOutputStream {
+
+	// --- DEFLATER POOL ---
+
+	/**
+	 * Max number of pooled Deflaters.
+	 */
+	protected static final int MAX_POOLED = 64;
+
+	protected static final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<>();
+
+	protected static final AtomicInteger pooled = new AtomicInteger();
+
+	// --- GZIP HEADER ---
+
+	protected static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	// --- VARIABLES ---
+
+	protected final CRC32 crc = new CRC32();
+
+	protected boolean finished;
+
+	// --- CONSTRUCTOR ---
+
+	public GzipOutput(OutputStream out) throws IOException {
+		this(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public GzipOutput(OutputStream out, int level) throws IOException {
+		super(out, acquire(level), 8192, true);
+		out.write(HEADER);
+	}
+
+	// --- OUTPUTSTREAM METHODS ---
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("write beyond end of stream");
+		}
+		super.write(b, off, len);
+		crc.update(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (finished) {
+
+			// The Deflater is returned to the pool
+			out.flush();
+			return;
+		}
+		super.flush();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		super.finish();
+		long value = crc.getValue();
+		int size = (int) def.getBytesRead();
+		byte[] trailer = { (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+				(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) };
+		out.write(trailer);
+		out.flush();
+		release();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			release();
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the Deflater to the pool (without writing the trailer). The
+	 * stream cannot be written after this.
+	 */
+	public void release() {
+		if (!finished) {
+			finished = true;
+			Deflater deflater = def;
+			def = null;
+			deflater.reset();
+			if (pooled.incrementAndGet() <= MAX_POOLED) {
+				pool.offer(deflater);
+			} else {
+				pooled.decrementAndGet();
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Releases the pooled Deflaters (eg. under memory pressure).
+	 */
+	public static void clearPool() {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) {
+			pooled.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	// --- PRECOMPRESSION ---
+
+	/**
+	 * Compresses a complete content into a GZIP byte array.
+	 *
+	 * @param bytes
+	 *            uncompressed content
+	 * @param level
+	 *            compression level (0-9)
+	 *
+	 * @return compressed content
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public static byte[] compress(byte[] bytes, int level) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 32);
+		GzipOutput gzip = new GzipOutput(buffer, level);
+		try {
+			gzip.write(bytes, 0, bytes.length);
+			gzip.finish();
+		} finally {
+			gzip.release();
+		}
+		return buffer.toByteArray();
+	}
+
+	// --- PRIVATE UTILITIES ---
+
+	protected static Deflater acquire(int level) {
+		Deflater deflater = pool.poll();
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+		pooled.decrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+}
\ No newline at end of file
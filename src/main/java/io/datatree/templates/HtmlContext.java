@@ -0,0 +1,158 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Minimal HTML tokenizer state. Used to find the positions of a template
+ * where markers (HTML comments or ESI tags) can be inserted: between the
+ * elements, but not inside a tag, a comment, or the text of a "script",
+ * "style", "title" or "textarea" element. The dynamic parts of the template
+ * are supposed to produce text content (or balanced elements).
+ */
+public class HtmlContext {
+
+	// --- STATES ---
+
+	protected static final int TEXT = 0;
+
+	protected static final int TAG = 1;
+
+	protected static final int COMMENT = 2;
+
+	protected static final int RAW_TEXT = 3;
+
+	/**
+	 * Elements with raw (or escapable raw) text content.
+	 */
+	protected static final HashSet<String> RAW_TEXT_ELEMENTS = new HashSet<>(
+			Arrays.asList("script", "style", "title", "textarea"));
+
+	// --- VARIABLES ---
+
+	protected int state = TEXT;
+
+	/**
+	 * Quote character of the current attribute value (or 0).
+	 */
+	protected char quote;
+
+	/**
+	 * Name of the current tag (or the raw text element).
+	 */
+	protected final StringBuilder tagName = new StringBuilder();
+
+	protected boolean readingName;
+
+	protected boolean closingTag;
+
+	/**
+	 * Last characters of a comment or a raw text (to find its end).
+	 */
+	protected final StringBuilder tail = new StringBuilder();
+
+	// --- SCANNER ---
+
+	/**
+	 * Processes the next static part of the template.
+	 * 
+	 * @param text
+	 *            static text
+	 */
+	public void scan(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (state) {
+			case TEXT:
+				if (c == '<') {
+					state = TAG;
+					tagName.setLength(0);
+					readingName = true;
+					closingTag = false;
+				}
+				break;
+
+			case TAG:
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '>') {
+					String name = tagName.toString().toLowerCase();
+					if (!closingTag && RAW_TEXT_ELEMENTS.contains(name)) {
+						state = RAW_TEXT;
+						tail.setLength(0);
+					} else {
+						state = TEXT;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = c;
+				} else if (readingName) {
+					if (c == '/' && tagName.length() == 0) {
+						closingTag = true;
+					} else if (Character.isWhitespace(c) || c == '/') {
+						readingName = false;
+					} else {
+						tagName.append(c);
+						if (tagName.length() == 3 && "!--".contentEquals(tagName)) {
+							state = COMMENT;
+							tail.setLength(0);
+						}
+					}
+				}
+				break;
+
+			case COMMENT:
+				append(c, 3);
+				if ("-->".contentEquals(tail)) {
+					state = TEXT;
+				}
+				break;
+
+			default:
+				String end = "</" + tagName;
+				append(c, end.length());
+				if (end.equalsIgnoreCase(tail.toString())) {
+					state = TAG;
+					closingTag = true;
+					readingName = false;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if a marker can be inserted at the current position.
+	 * 
+	 * @return true, if the current position is between elements
+	 */
+	public boolean isText() {
+		return state == TEXT;
+	}
+
+	protected void append(char c, int max) {
+		tail.append(c);
+		if (tail.length() > max) {
+			tail.deleteCharAt(0);
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,520 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import io.datatree.Tree;
+
+/**
+ * Lazy, read-only data model over serialized JSON bytes. The JSON objects and
+ * arrays are indexed (one level at a time) only when the template accesses
+ * them, and the values are decoded only on first access. The skipped parts of
+ * the JSON are never converted to Maps, Lists, Strings or boxed numbers.
+ * Usage:
+ *
+ * <pre>
+ * Tree data = LazyJson.parse(bytes);
+ * String html = engine.process("index.html", data);
+ * </pre>
+ *
+ * The model is not thread-safe; use it for one rendering at a time.
+ */
+public final class LazyJson {
+
+	// --- FACTORY ---
+
+	/**
+	 * Creates a lazy data model from UTF-8 encoded JSON.
+	 *
+	 * @param json
+	 *            serialized JSON
+	 *
+	 * @return lazy data model
+	 */
+	public static final Tree parse(byte[] json) {
+		return parse(json, 0, json.length);
+	}
+
+	/**
+	 * Creates a lazy data model from a part of a byte array.
+	 *
+	 * @param json
+	 *            array that contains the UTF-8 encoded JSON
+	 * @param offset
+	 *            start position of the JSON
+	 * @param length
+	 *            length of the JSON
+	 *
+	 * @return lazy data model
+	 */
+	public static final Tree parse(byte[] json, int offset, int length) {
+		int limit = offset + length;
+		int pos = skipWhitespace(json, offset, limit);
+		return new Tree().setObject(value(json, pos, limit));
+	}
+
+	// --- JSON OBJECT ---
+
+	/**
+	 * Map view of a JSON object. The keys are indexed on first access.
+	 */
+	protected static final class LazyObject extends AbstractMap<String, Object> {
+
+		private final byte[] json;
+		private final int start;
+		private final int limit;
+
+		private String[] keys;
+		private int[] positions;
+		private Object[] values;
+		private int size;
+		private HashMap<String, Integer> index;
+
+		protected LazyObject(byte[] json, int start, int limit) {
+			this.json = json;
+			this.start = start;
+			this.limit = limit;
+		}
+
+		private final void index() {
+			if (keys != null) {
+				return;
+			}
+			keys = new String[8];
+			positions = new int[8];
+			int pos = skipWhitespace(json, start + 1, limit);
+			if (pos < limit && json[pos] == '}') {
+				values = new Object[0];
+				return;
+			}
+			for (;;) {
+				if (pos >= limit || json[pos] != '"') {
+					throw invalid(pos);
+				}
+				int keyEnd = skip(json, pos, limit);
+				String key = string(json, pos, keyEnd);
+				pos = skipWhitespace(json, keyEnd, limit);
+				if (pos >= limit || json[pos] != ':') {
+					throw invalid(pos);
+				}
+				pos = skipWhitespace(json, pos + 1, limit);
+				if (size == keys.length) {
+					String[] newKeys = new String[size * 2];
+					System.arraycopy(keys, 0, newKeys, 0, size);
+					keys = newKeys;
+					int[] newPositions = new int[size * 2];
+					System.arraycopy(positions, 0, newPositions, 0, size);
+					positions = newPositions;
+				}
+				keys[size] = key;
+				positions[size++] = pos;
+				pos = skipWhitespace(json, skip(json, pos, limit), limit);
+				if (pos < limit && json[pos] == ',') {
+					pos = skipWhitespace(json, pos + 1, limit);
+					continue;
+				}
+				if (pos < limit && json[pos] == '}') {
+					break;
+				}
+				throw invalid(pos);
+			}
+			values = new Object[size];
+			if (size > 16) {
+				index = new HashMap<>(size * 2);
+				for (int i = size - 1; i >= 0; i--) {
+					index.put(keys[i], i);
+				}
+			}
+		}
+
+		private final int indexOf(Object key) {
+			index();
+			if (index != null) {
+				Integer i = index.get(key);
+				return i == null ? -1 : i;
+			}
+			for (int i = 0; i < size; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private final Object valueAt(int i) {
+			Object value = values[i];
+			if (value == null) {
+				value = value(json, positions[i], limit);
+				values[i] = value == null ? NULL : value;
+				return value;
+			}
+			return value == NULL ? null : value;
+		}
+
+		@Override
+		public final Object get(Object key) {
+			int i = indexOf(key);
+			return i == -1 ? null : valueAt(i);
+		}
+
+		@Override
+		public final boolean containsKey(Object key) {
+			return indexOf(key) != -1;
+		}
+
+		@Override
+		public final int size() {
+			index();
+			return size;
+		}
+
+		@Override
+		public final Set<Entry<String, Object>> entrySet() {
+			index();
+			return new AbstractSet<Entry<String, Object>>() {
+
+				@Override
+				public final Iterator<Entry<String, Object>> iterator() {
+					return new Iterator<Entry<String, Object>>() {
+
+						private int i;
+
+						@Override
+						public final boolean hasNext() {
+							return i < size;
+						}
+
+						@Override
+						public final Entry<String, Object> next() {
+							if (i >= size) {
+								throw new NoSuchElementException();
+							}
+							Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[i], valueAt(i));
+							i++;
+							return entry;
+						}
+
+					};
+				}
+
+				@Override
+				public final int size() {
+					return size;
+				}
+
+			};
+		}
+
+	}
+
+	// --- JSON ARRAY ---
+
+	/**
+	 * List view of a JSON array. The positions of the elements are indexed on
+	 * first access.
+	 */
+	protected static final class LazyArray extends AbstractList<Object> implements RandomAccess {
+
+		private final byte[] json;
+		private final int start;
+		private final int limit;
+
+		private int[] positions;
+		private Object[] values;
+		private int size = -1;
+
+		protected LazyArray(byte[] json, int start, int limit) {
+			this.json = json;
+			this.start = start;
+			this.limit = limit;
+		}
+
+		private final void index() {
+			if (size != -1) {
+				return;
+			}
+			positions = new int[8];
+			size = 0;
+			int pos = skipWhitespace(json, start + 1, limit);
+			if (pos < limit && json[pos] == ']') {
+				values = new Object[0];
+				return;
+			}
+			for (;;) {
+				if (size == positions.length) {
+					int[] newPositions = new int[size * 2];
+					System.arraycopy(positions, 0, newPositions, 0, size);
+					positions = newPositions;
+				}
+				positions[size++] = pos;
+				pos = skipWhitespace(json, skip(json, pos, limit), limit);
+				if (pos < limit && json[pos] == ',') {
+					pos = skipWhitespace(json, pos + 1, limit);
+					continue;
+				}
+				if (pos < limit && json[pos] == ']') {
+					break;
+				}
+				throw invalid(pos);
+			}
+			values = new Object[size];
+		}
+
+		@Override
+		public final Object get(int i) {
+			index();
+			if (i < 0 || i >= size) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+			}
+			Object value = values[i];
+			if (value == null) {
+				value = value(json, positions[i], limit);
+				values[i] = value == null ? NULL : value;
+				return value;
+			}
+			return value == NULL ? null : value;
+		}
+
+		@Override
+		public final int size() {
+			index();
+			return size;
+		}
+
+	}
+
+	// --- PRIVATE UTILITIES ---
+
+	/**
+	 * Marker of the decoded JSON nulls.
+	 */
+	private static final Object NULL = new Object();
+
+	/**
+	 * Decodes the value at the specified position (objects and arrays are
+	 * decoded lazily).
+	 */
+	private static final Object value(byte[] json, int pos, int limit) {
+		if (pos >= limit) {
+			throw invalid(pos);
+		}
+		switch (json[pos]) {
+		case '{':
+			return new LazyObject(json, pos, limit);
+		case '[':
+			return new LazyArray(json, pos, limit);
+		case '"':
+			return string(json, pos, skip(json, pos, limit));
+		case 't':
+			return literal(json, pos, limit, "true", Boolean.TRUE);
+		case 'f':
+			return literal(json, pos, limit, "false", Boolean.FALSE);
+		case 'n':
+			return literal(json, pos, limit, "null", null);
+		default:
+			return number(json, pos, skip(json, pos, limit));
+		}
+	}
+
+	/**
+	 * Checks a "true", "false" or "null" literal.
+	 */
+	private static final Object literal(byte[] json, int pos, int limit, String word, Object value) {
+		int end = skip(json, pos, limit);
+		if (end - pos != word.length()) {
+			throw invalid(pos);
+		}
+		for (int i = 1; i < word.length(); i++) {
+			if (json[pos + i] != word.charAt(i)) {
+				throw invalid(pos);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the position after the value (without decoding the value).
+	 */
+	private static final int skip(byte[] json, int pos, int limit) {
+		byte b = json[pos];
+		if (b == '"') {
+			for (int i = pos + 1; i < limit; i++) {
+				b = json[i];
+				if (b == '\\') {
+					i++;
+				} else if (b == '"') {
+					return i + 1;
+				}
+			}
+			throw invalid(pos);
+		}
+		if (b == '{' || b == '[') {
+			int depth = 0;
+			for (int i = pos; i < limit; i++) {
+				b = json[i];
+				if (b == '"') {
+					i = skip(json, i, limit) - 1;
+				} else if (b == '{' || b == '[') {
+					depth++;
+				} else if (b == '}' || b == ']') {
+					if (--depth == 0) {
+						return i + 1;
+					}
+				}
+			}
+			throw invalid(pos);
+		}
+		int i = pos;
+		while (i < limit) {
+			b = json[i];
+			if (b == ',' || b == '}' || b == ']' || b <= ' ') {
+				break;
+			}
+			i++;
+		}
+		if (i == pos) {
+			throw invalid(pos);
+		}
+		return i;
+	}
+
+	private static final int skipWhitespace(byte[] json, int pos, int limit) {
+		while (pos < limit) {
+			byte b = json[pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decodes a quoted string (from the opening quote to the position after
+	 * the closing quote).
+	 */
+	private static final String string(byte[] json, int start, int end) {
+		int from = start + 1;
+		int to = end - 1;
+		boolean ascii = true;
+		for (int i = from; i < to; i++) {
+			byte b = json[i];
+			if (b == '\\') {
+				return unescape(json, from, to);
+			}
+			if (b < 0) {
+				ascii = false;
+			}
+		}
+		return new String(json, from, to - from, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	private static final String unescape(byte[] json, int from, int to) {
+		StringBuilder builder = new StringBuilder(to - from);
+		int segment = from;
+		for (int i = from; i < to; i++) {
+			if (json[i] != '\\') {
+				continue;
+			}
+			if (i > segment) {
+				builder.append(new String(json, segment, i - segment, StandardCharsets.UTF_8));
+			}
+			if (++i >= to) {
+				throw invalid(i);
+			}
+			byte b = json[i];
+			switch (b) {
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'n':
+				builder.append('\n');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case 'u':
+				if (i + 4 >= to) {
+					throw invalid(i);
+				}
+				builder.append((char) Integer.parseInt(new String(json, i + 1, 4, StandardCharsets.ISO_8859_1), 16));
+				i += 4;
+				break;
+			default:
+				builder.append((char) b);
+				break;
+			}
+			segment = i + 1;
+		}
+		if (to > segment) {
+			builder.append(new String(json, segment, to - segment, StandardCharsets.UTF_8));
+		}
+		return builder.toString();
+	}
+
+	private static final Object number(byte[] json, int start, int end) {
+		boolean integral = end - start < 19;
+		long value = 0;
+		int i = start;
+		boolean negative = json[i] == '-';
+		if (negative) {
+			i++;
+		}
+		for (; i < end && integral; i++) {
+			byte b = json[i];
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+			} else {
+				integral = false;
+			}
+		}
+		if (integral && end > start + (negative ? 1 : 0)) {
+			return negative ? -value : value;
+		}
+		String text = new String(json, start, end - start, StandardCharsets.ISO_8859_1);
+		try {
+			if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1) {
+				return new BigInteger(text);
+			}
+			return Double.parseDouble(text);
+		} catch (NumberFormatException notNumeric) {
+			throw invalid(start);
+		}
+	}
+
+	private static final IllegalArgumentException invalid(int pos) {
+		return new IllegalArgumentException("Invalid JSON at position " + pos + "!");
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,267 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Calls the "shed" method of the registered TemplateEngines when the usage of
+ * the tenured heap pools (after a garbage collection) exceeds their
+ * threshold. The engines are referenced weakly. The pools are armed at the
+ * lowest threshold of the registered engines; when a notification arrives,
+ * each engine is shed only if the usage exceeds its own threshold. The
+ * original thresholds are restored (and the listener is removed) when the
+ * last engine is unregistered or garbage collected.
+ */
+public final class MemoryWatcher {
+
+	// --- VARIABLES ---
+
+	private static final CopyOnWriteArrayList<Registration> engines = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Names of the armed memory pools and their original thresholds (usage
+	 * and collection usage threshold).
+	 */
+	private static final HashMap<String, long[]> pools = new HashMap<>();
+
+	private static NotificationListener listener;
+
+	/**
+	 * Current (lowest) threshold of the armed pools.
+	 */
+	private static double armedThreshold;
+
+	// --- REGISTRATION ---
+
+	/**
+	 * Registers an engine.
+	 *
+	 * @param engine
+	 *            the engine to notify
+	 * @param usageThreshold
+	 *            heap usage threshold (eg. 0.85 = 85% of the max heap size)
+	 */
+	public static final synchronized void register(TemplateEngine engine, double usageThreshold) {
+		if (usageThreshold <= 0 || usageThreshold >= 1) {
+			throw new IllegalArgumentException("Invalid usage threshold: " + usageThreshold);
+		}
+		remove(engine);
+		engines.add(new Registration(engine, usageThreshold));
+		rearm();
+		if (listener == null) {
+			listener = (notification, handback) -> {
+				String type = notification.getType();
+				if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+						|| MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+					shedAll();
+				}
+			};
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null,
+					null);
+		}
+	}
+
+	/**
+	 * Unregisters an engine. The pools are armed at the lowest threshold of
+	 * the remaining engines; the original thresholds are restored, and the
+	 * listener is removed, when no registered engine remains.
+	 *
+	 * @param engine
+	 *            the registered engine
+	 */
+	public static final synchronized void unregister(TemplateEngine engine) {
+		remove(engine);
+		rearm();
+	}
+
+	/**
+	 * Returns true if any (live) engine is registered.
+	 * 
+	 * @return true if the memory pools are watched
+	 */
+	public static final synchronized boolean isArmed() {
+		if (remove(null)) {
+			rearm();
+		}
+		return listener != null;
+	}
+
+	/**
+	 * Returns the threshold of the armed pools (the lowest threshold of the
+	 * registered engines).
+	 * 
+	 * @return usage threshold, or 0 if no engine is registered
+	 */
+	public static final synchronized double getUsageThreshold() {
+		return listener == null ? 0 : armedThreshold;
+	}
+
+	// --- NOTIFICATION ---
+
+	/**
+	 * Calls the "shed" method of the registered engines whose threshold is
+	 * exceeded by the current usage of the tenured pools.
+	 */
+	public static final void shedAll() {
+		double usage = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (!isTenured(pool)) {
+				continue;
+			}
+			MemoryUsage current = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage()
+					: pool.getUsage();
+			if (current != null) {
+				usage = Math.max(usage, (double) current.getUsed() / current.getMax());
+			}
+		}
+		shedAll(usage);
+	}
+
+	/**
+	 * Calls the "shed" method of the registered engines whose threshold is
+	 * not higher than the specified heap usage.
+	 * 
+	 * @param usage
+	 *            heap usage (eg. 0.85 = 85% of the max heap size)
+	 */
+	public static final void shedAll(double usage) {
+		boolean collected = false;
+		for (Registration registration : engines) {
+			TemplateEngine engine = registration.engine.get();
+			if (engine == null) {
+				collected = true;
+			} else if (usage >= registration.threshold) {
+				engine.shed();
+			}
+		}
+		if (collected) {
+			synchronized (MemoryWatcher.class) {
+				remove(null);
+				rearm();
+			}
+		}
+	}
+
+	// --- PRIVATE METHODS ---
+
+	/**
+	 * Removes the registration of the engine and the collected engines.
+	 */
+	private static final boolean remove(TemplateEngine engine) {
+		boolean removed = false;
+		for (Registration registration : engines) {
+			TemplateEngine registered = registration.engine.get();
+			if (registered == null || registered == engine) {
+				removed |= engines.remove(registration);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Arms the pools at the lowest threshold of the registered engines, or
+	 * disarms them if no engine remains.
+	 */
+	private static final void rearm() {
+		double threshold = 1;
+		for (Registration registration : engines) {
+			threshold = Math.min(threshold, registration.threshold);
+		}
+		if (threshold >= 1) {
+			disarm();
+			return;
+		}
+		if (threshold == armedThreshold && !pools.isEmpty()) {
+			return;
+		}
+		armedThreshold = threshold;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (!isTenured(pool)) {
+				continue;
+			}
+			boolean collection = pool.isCollectionUsageThresholdSupported();
+			pools.computeIfAbsent(pool.getName(), key -> new long[] { pool.getUsageThreshold(),
+					collection ? pool.getCollectionUsageThreshold() : 0 });
+			long value = (long) (pool.getUsage().getMax() * threshold);
+			if (collection) {
+				pool.setCollectionUsageThreshold(value);
+			} else {
+				pool.setUsageThreshold(value);
+			}
+		}
+	}
+
+	/**
+	 * Tenured pools only (the eden and survivor spaces don't support usage
+	 * thresholds).
+	 */
+	private static final boolean isTenured(MemoryPoolMXBean pool) {
+		return pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isValid()
+				&& pool.getUsage().getMax() > 0;
+	}
+
+	private static final void disarm() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			long[] thresholds = pools.get(pool.getName());
+			if (thresholds != null && pool.isValid()) {
+				pool.setUsageThreshold(thresholds[0]);
+				if (pool.isCollectionUsageThresholdSupported()) {
+					pool.setCollectionUsageThreshold(thresholds[1]);
+				}
+			}
+		}
+		pools.clear();
+		armedThreshold = 0;
+		if (listener != null) {
+			try {
+				((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+			} catch (ListenerNotFoundException ignored) {
+				// Already removed
+			}
+			listener = null;
+		}
+	}
+
+	// --- REGISTERED ENGINE ---
+
+	private static final class Registration {
+
+		private final WeakReference<TemplateEngine> engine;
+
+		private final double threshold;
+
+		private Registration(TemplateEngine engine, double threshold) {
+			this.engine = new WeakReference<>(engine);
+			this.threshold = threshold;
+		}
+
+	}
+
+}
\ No newline at end of file
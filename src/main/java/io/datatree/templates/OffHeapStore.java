@@ -0,0 +1,229 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Off-heap storage of the static texts of the cached templates. The long
+ * static texts are encoded into large direct buffers (chunks) at compile
+ * time, before the fragments are shared; only a small read-only view remains
+ * on the heap. The fragments are not modified later. The segments are
+ * reference-counted (a fragment can be shared by more templates) only for
+ * the statistics: the store never frees or reuses the memory of a segment,
+ * because a rendering in progress may still read it. A chunk is reclaimed by
+ * the garbage collector once no fragment refers to any of its segments, so a
+ * single long-lived segment keeps its whole chunk in memory. Usage:
+ *
+ * <pre>
+ * engine.setOffHeapStore(new OffHeapStore());
+ * </pre>
+ */
+public class OffHeapStore implements FragmentTypes {
+
+	// --- PROPERTIES ---
+
+	/**
+	 * Size of the direct buffers (larger segments get their own buffer).
+	 */
+	protected final int chunkSize;
+
+	/**
+	 * Chunk of the new segments.
+	 */
+	protected Chunk current;
+
+	/**
+	 * Number of bytes used by the segments of the cached templates.
+	 */
+	protected long allocatedBytes;
+
+	/**
+	 * Total size of the chunks that have segments used by cached templates
+	 * (plus the current chunk). Unreferenced chunks are not counted, even if
+	 * the garbage collector has not reclaimed them yet.
+	 */
+	protected long reservedBytes;
+
+	// --- CONSTRUCTORS ---
+
+	public OffHeapStore() {
+		this(1024 * 1024);
+	}
+
+	public OffHeapStore(int chunkSize) {
+		this.chunkSize = Math.max(4096, chunkSize);
+	}
+
+	// --- ALLOCATION ---
+
+	/**
+	 * Moves the long static texts of a newly compiled template into the
+	 * off-heap memory. Must be called before the fragments of the template are
+	 * shared (pooled or cached).
+	 * 
+	 * @param command
+	 *            the compiled template
+	 * @param charset
+	 *            character encoding of the output
+	 * @param minLength
+	 *            shorter texts remain on the heap
+	 */
+	public synchronized void encode(Fragment command, Charset charset, int minLength) {
+		if (command.type == STATIC_TEXT && command.segment == null && command.content != null
+				&& command.content.length() >= minLength) {
+			ByteBuffer encoded = charset.encode(command.content);
+			Segment segment = allocate(encoded.remaining());
+			ByteBuffer buffer = segment.chunk.buffer.duplicate();
+			buffer.position(segment.offset);
+			buffer.put(encoded);
+			buffer.limit(buffer.position());
+			buffer.position(segment.offset);
+			command.segment = segment;
+			command.bytes = buffer.slice().asReadOnlyBuffer();
+			command.content = null;
+		}
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				encode(child, charset, minLength);
+			}
+		}
+	}
+
+	/**
+	 * Counts the off-heap segments of a cached template as used (statistics
+	 * only).
+	 * 
+	 * @param command
+	 *            the cached template
+	 */
+	public synchronized void acquire(Fragment command) {
+		Segment segment = command.segment;
+		if (segment != null && segment.references++ == 0) {
+			Chunk chunk = segment.chunk;
+			if (chunk.live == 0 && chunk != current) {
+				reservedBytes += chunk.buffer.capacity();
+			}
+			chunk.live += segment.length;
+			allocatedBytes += segment.length;
+		}
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				acquire(child);
+			}
+		}
+	}
+
+	/**
+	 * Counts the off-heap segments of an evicted template as unused
+	 * (statistics only). The memory is not freed here: the fragments remain
+	 * readable (a rendering in progress or a pooled copy of the fragment can
+	 * use them), and the chunk is reclaimed by the garbage collector.
+	 * 
+	 * @param command
+	 *            the evicted template
+	 */
+	public synchronized void release(Fragment command) {
+		Segment segment = command.segment;
+		if (segment != null && --segment.references == 0) {
+			allocatedBytes -= segment.length;
+			Chunk chunk = segment.chunk;
+			chunk.live -= segment.length;
+			if (chunk.live == 0 && chunk != current) {
+				reservedBytes -= chunk.buffer.capacity();
+			}
+		}
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				release(child);
+			}
+		}
+	}
+
+	protected Segment allocate(int length) {
+		Chunk chunk;
+		if (length > chunkSize / 2) {
+			chunk = new Chunk(length);
+		} else {
+			if (current == null || current.buffer.capacity() - current.used < length) {
+				if (current != null && current.live == 0) {
+					reservedBytes -= current.buffer.capacity();
+				}
+				current = new Chunk(chunkSize);
+				reservedBytes += chunkSize;
+			}
+			chunk = current;
+		}
+		Segment segment = new Segment(chunk, chunk.used, length);
+		chunk.used += length;
+		return segment;
+	}
+
+	// --- STATISTICS ---
+
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	// --- MEMORY BLOCKS ---
+
+	protected static final class Chunk {
+
+		protected final ByteBuffer buffer;
+
+		protected int used;
+
+		protected int live;
+
+		protected Chunk(int capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity);
+		}
+
+	}
+
+	/**
+	 * Handle of an off-heap static text.
+	 */
+	public static final class Segment {
+
+		protected final Chunk chunk;
+
+		protected final int offset;
+
+		protected final int length;
+
+		protected int references;
+
+		protected Segment(Chunk chunk, int offset, int length) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,358 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Output buffer for very large renderings. The first "memoryLimit" bytes are
+ * stored on the heap, the rest is written into a temporary file (which is
+ * deleted when the buffer is released or closed). The content can be
+ * transferred without copying it to the heap (eg. into a SocketChannel).
+ * Usage:
+ *
+ * <pre>
+ * OutputBuffer buffer = new OutputBuffer(8 * 1024 * 1024);
+ * buffer.setDigest(ContentDigest.create(ContentDigest.SHA_256));
+ * try {
+ *     engine.process("feed.xml", data, buffer);
+ *     String etag = buffer.getETag();
+ *     buffer.transferTo(socketChannel);
+ * } finally {
+ *     buffer.release();
+ * }
+ * </pre>
+ */
+public class OutputBuffer extends OutputStream {
+
+	// --- PROPERTIES ---
+
+	/**
+	 * Max number of bytes stored on the heap.
+	 */
+	protected final int memoryLimit;
+
+	/**
+	 * Directory of the temporary file (null = default temp directory).
+	 */
+	protected final Path directory;
+
+	/**
+	 * Heap part of the content.
+	 */
+	protected byte[] memory;
+
+	/**
+	 * Number of bytes in the "memory" array.
+	 */
+	protected int count;
+
+	/**
+	 * Temporary file (or null, if the content fits into the memory).
+	 */
+	protected FileChannel file;
+
+	/**
+	 * Total number of bytes written.
+	 */
+	protected long size;
+
+	/**
+	 * Optional hash of the content (updated during the writing).
+	 */
+	protected MessageDigest digest;
+
+	/**
+	 * Final value of the hash.
+	 */
+	protected byte[] hash;
+
+	// --- CONSTRUCTORS ---
+
+	public OutputBuffer() {
+		this(8 * 1024 * 1024);
+	}
+
+	public OutputBuffer(int memoryLimit) {
+		this(memoryLimit, null);
+	}
+
+	public OutputBuffer(int memoryLimit, Path directory) {
+		this.memoryLimit = memoryLimit;
+		this.directory = directory;
+		this.memory = new byte[Math.min(memoryLimit, 8192)];
+	}
+
+	// --- WRITE METHODS ---
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count < memory.length || grow(1)) {
+			memory[count++] = (byte) b;
+			size++;
+			if (digest != null) {
+				digest.update((byte) b);
+			}
+			return;
+		}
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (digest != null) {
+			digest.update(b, off, len);
+		}
+		if (file == null) {
+			int free = memory.length - count;
+			if (free < len && grow(len)) {
+				free = memory.length - count;
+			}
+			int n = Math.min(free, len);
+			System.arraycopy(b, off, memory, count, n);
+			count += n;
+			size += n;
+			off += n;
+			len -= n;
+			if (len == 0) {
+				return;
+			}
+			spill();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while (buffer.hasRemaining()) {
+			file.write(buffer);
+		}
+		size += len;
+	}
+
+	// --- READ METHODS ---
+
+	/**
+	 * Writes the whole content into the specified channel. The part stored in
+	 * the temporary file is transferred by the OS (without copying it to the
+	 * heap), if the channel supports it.
+	 *
+	 * @param target
+	 *            target channel (eg. a SocketChannel or a FileChannel)
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void transferTo(WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(memory, 0, count);
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+		if (file != null) {
+			long position = 0;
+			long length = file.size();
+			while (position < length) {
+				position += file.transferTo(position, length - position, target);
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole content into the specified stream.
+	 *
+	 * @param out
+	 *            target stream
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (file == null) {
+			out.write(memory, 0, count);
+		} else {
+			transferTo(Channels.newChannel(out));
+		}
+	}
+
+	/**
+	 * Returns the content as String (for small contents and testing).
+	 *
+	 * @param charset
+	 *            character encoding of the content
+	 *
+	 * @return content of the buffer
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public String toString(Charset charset) throws IOException {
+		if (file == null) {
+			return new String(memory, 0, count, charset);
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Content is too large (" + size + " bytes)!");
+		}
+		byte[] bytes = new byte[(int) size];
+		System.arraycopy(memory, 0, bytes, 0, count);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, count, bytes.length - count);
+		long position = 0;
+		while (buffer.hasRemaining()) {
+			int n = file.read(buffer, position);
+			if (n == -1) {
+				break;
+			}
+			position += n;
+		}
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Returns the total number of bytes written.
+	 *
+	 * @return size of the content
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the hash of the content as HTTP ETag. The hash is computed during
+	 * the writing, so the ETag is available before the content is sent.
+	 *
+	 * @return quoted ETag, or null if the "digest" is not set
+	 */
+	public String getETag() {
+		if (hash == null) {
+			if (digest == null) {
+				return null;
+			}
+			hash = digest.digest();
+		}
+		return ContentDigest.toETag(hash);
+	}
+
+	/**
+	 * Returns true if the content is (partly) stored in a temporary file.
+	 *
+	 * @return true, if the buffer is larger than the "memoryLimit"
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	// --- RELEASE ---
+
+	/**
+	 * Releases the heap buffer and deletes the temporary file.
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void release() throws IOException {
+		memory = new byte[0];
+		count = 0;
+		size = 0;
+		hash = null;
+		if (digest != null) {
+			digest.reset();
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} finally {
+				file = null;
+			}
+		}
+	}
+
+	/**
+	 * Releases the buffer (see "release"), so the temporary file is deleted
+	 * in a try-with-resources block.
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	@Override
+	public void close() throws IOException {
+		release();
+	}
+
+	// --- PROTECTED METHODS ---
+
+	/**
+	 * Enlarges the heap buffer (up to the "memoryLimit").
+	 */
+	protected boolean grow(int required) {
+		if (file != null || memory.length >= memoryLimit) {
+			return false;
+		}
+		long newLength = Math.max((long) memory.length * 2, (long) count + required);
+		byte[] newMemory = new byte[(int) Math.min(newLength, memoryLimit)];
+		System.arraycopy(memory, 0, newMemory, 0, count);
+		memory = newMemory;
+		return true;
+	}
+
+	/**
+	 * Creates the temporary file.
+	 */
+	protected void spill() throws IOException {
+		Path path = directory == null ? Files.createTempFile("render", ".tmp")
+				: Files.createTempFile(directory, "render", ".tmp");
+		try {
+			file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+		} catch (IOException cause) {
+			Files.deleteIfExists(path);
+			throw cause;
+		}
+	}
+
+	// --- GETTERS AND SETTERS ---
+
+	public int getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public MessageDigest getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Sets the hash algorithm of the ETag (eg.
+	 * "ContentDigest.create(ContentDigest.SHA_256)"). Must be set before the
+	 * rendering.
+	 *
+	 * @param digest
+	 *            MessageDigest
+	 */
+	public void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+}
\ No newline at end of file
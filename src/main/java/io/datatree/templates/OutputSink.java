@@ -0,0 +1,63 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-oriented target of the streaming rendering. The static parts of the
+ * templates are passed as pre-encoded, shared buffers (without copying them
+ * into the output buffer), the dynamic parts are passed as encoded chunks.
+ */
+public interface OutputSink {
+
+	/**
+	 * Writes a static segment of the template. The buffer is shared by all
+	 * renderings (read-only); it can be stored or sent without copying.
+	 * 
+	 * @param segment
+	 *            pre-encoded static text
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	void writeStatic(ByteBuffer segment) throws IOException;
+
+	/**
+	 * Writes a rendered (dynamic) chunk. The buffer is reused after the call;
+	 * the sink must copy its content if it needs it later.
+	 * 
+	 * @param chunk
+	 *            encoded dynamic content
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	void write(ByteBuffer chunk) throws IOException;
+
+	/**
+	 * Sends the written content to the client.
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	default void flush() throws IOException {
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+/**
+ * New content of a re-rendered region (see RenderState).
+ */
+public class RegionPatch {
+
+	// --- VARIABLES ---
+
+	/**
+	 * ID of the region.
+	 */
+	protected final String id;
+
+	/**
+	 * New content of the region.
+	 */
+	protected final String html;
+
+	// --- CONSTRUCTOR ---
+
+	public RegionPatch(String id, String html) {
+		this.id = id;
+		this.html = html;
+	}
+
+	// --- GETTERS ---
+
+	public String getId() {
+		return id;
+	}
+
+	public String getHtml() {
+		return html;
+	}
+
+	// --- TO STRING ---
+
+	@Override
+	public String toString() {
+		return id + "=" + html;
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,270 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.stream.BaseStream;
+
+import io.datatree.Tree;
+
+/**
+ * State of a single rendering (one "process" call).
+ */
+public class RenderContext {
+
+	// --- VARIABLES ---
+
+	/**
+	 * Memoized values of the lazy nodes (Suppliers and Futures), resolved
+	 * during the current rendering.
+	 */
+	protected IdentityHashMap<Object, Tree> resolvedValues;
+
+	/**
+	 * Elements of the one-shot loop sources (Iterators and Streams) of the
+	 * async blocks. An async block is rendered again if it waits for a Future,
+	 * so its loops must not read the source twice.
+	 */
+	protected IdentityHashMap<Object, ArrayList<Object>> bufferedSources;
+
+	// --- STREAMING ---
+
+	/**
+	 * Output buffer of the rendering.
+	 */
+	protected final StringBuilder builder;
+
+	/**
+	 * Optional target of the streaming rendering (null = render to String).
+	 */
+	protected final Writer writer;
+
+	/**
+	 * Reusable buffer for writing the content of the builder (8 KB, allocated
+	 * at the first write).
+	 */
+	protected char[] chars;
+
+	/**
+	 * Write out the output buffer when it reaches this size.
+	 */
+	protected int chunkSize = Integer.MAX_VALUE;
+
+	/**
+	 * Flush the Writer after writing out a chunk (false = flush only at the
+	 * "#{flush}" tags).
+	 */
+	protected boolean flushChunks;
+
+	/**
+	 * Optional byte-oriented target (receives the static segments directly).
+	 */
+	protected OutputSink sink;
+
+	/**
+	 * ESI mode (the ESI blocks are rendered as placeholders).
+	 */
+	protected boolean esi;
+
+	// --- ASYNC BLOCKS ---
+
+	/**
+	 * Async blocks, waiting to be rendered into their placeholders (null =
+	 * async blocks are rendered in place).
+	 */
+	protected LinkedList<DeferredBlock> deferredBlocks;
+
+	/**
+	 * Sequence of the async block IDs.
+	 */
+	protected int blockCounter;
+
+	/**
+	 * True if the rendering must not wait for an unfinished Future.
+	 */
+	protected boolean nonBlocking;
+
+	/**
+	 * Unfinished Futures, found during the non-blocking rendering.
+	 */
+	protected LinkedList<Future<?>> pendingFutures;
+
+	// --- CONSTRUCTORS ---
+
+	public RenderContext() {
+		this(null, null);
+	}
+
+	public RenderContext(StringBuilder builder, Writer writer) {
+		this.builder = builder;
+		this.writer = writer;
+	}
+
+	// --- LAZY VALUES ---
+
+	/**
+	 * Returns the memoized value of a lazy node.
+	 * 
+	 * @param lazyValue
+	 *            the lazy value (eg. a Supplier)
+	 * 
+	 * @return resolved value, or null if it has not been resolved yet
+	 */
+	public Tree getResolvedValue(Object lazyValue) {
+		return resolvedValues == null ? null : resolvedValues.get(lazyValue);
+	}
+
+	/**
+	 * Stores the resolved value of a lazy node.
+	 * 
+	 * @param lazyValue
+	 *            the lazy value (eg. a Supplier)
+	 * @param value
+	 *            resolved value
+	 */
+	public void setResolvedValue(Object lazyValue, Tree value) {
+		if (resolvedValues == null) {
+			resolvedValues = new IdentityHashMap<>();
+		}
+		resolvedValues.put(lazyValue, value);
+	}
+
+	/**
+	 * Reads a one-shot loop source (Iterator or Stream) into a list, once per
+	 * rendering. A Stream is closed after reading.
+	 * 
+	 * @param source
+	 *            Iterator or BaseStream
+	 * 
+	 * @return elements of the source
+	 */
+	public ArrayList<Object> getBufferedSource(Object source) {
+		if (bufferedSources == null) {
+			bufferedSources = new IdentityHashMap<>();
+		}
+		ArrayList<Object> elements = bufferedSources.get(source);
+		if (elements == null) {
+			elements = new ArrayList<>();
+			if (source instanceof BaseStream) {
+				try (BaseStream<?, ?> stream = (BaseStream<?, ?>) source) {
+					stream.iterator().forEachRemaining(elements::add);
+				}
+			} else {
+				((Iterator<?>) source).forEachRemaining(elements::add);
+			}
+			bufferedSources.put(source, elements);
+		}
+		return elements;
+	}
+
+	// --- STREAMING ---
+
+	/**
+	 * Returns true if the output is written into a Writer.
+	 * 
+	 * @return true if streaming
+	 */
+	public boolean isStreaming() {
+		return writer != null;
+	}
+
+	/**
+	 * Writes the content of the output buffer into the Writer (if streaming),
+	 * then clears the buffer.
+	 * 
+	 * @param flush
+	 *            flush the Writer
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void flush(boolean flush) throws IOException {
+		if (writer == null) {
+			return;
+		}
+		int len = builder.length();
+		if (len > 0) {
+			if (chars == null) {
+				chars = new char[8192];
+			}
+			for (int pos = 0; pos < len;) {
+				int n = Math.min(chars.length, len - pos);
+				builder.getChars(pos, pos + n, chars, 0);
+				writer.write(chars, 0, n);
+				pos += n;
+			}
+			builder.setLength(0);
+		}
+		if (flush) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Writes out the output buffer if it reached the "chunkSize" (if
+	 * streaming), so the size of the output doesn't affect the memory usage.
+	 * 
+	 * @param buffer
+	 *            the current output buffer (only the main buffer is written)
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void flushChunk(StringBuilder buffer) throws IOException {
+		if (buffer == builder && writer != null && builder.length() >= chunkSize) {
+			flush(flushChunks);
+		}
+	}
+
+	// --- DEFERRED BLOCK ---
+
+	/**
+	 * Async block, rendered later into its placeholder.
+	 */
+	protected static final class DeferredBlock {
+
+		protected final String id;
+		protected final String basePath;
+		protected final Fragment fragment;
+		protected final Tree root;
+		protected final HashMap<String, Tree> variables;
+
+		/**
+		 * The unfinished Future which stopped the last rendering attempt.
+		 */
+		protected Future<?> pending;
+
+		protected DeferredBlock(String id, String basePath, Fragment fragment, Tree root,
+				HashMap<String, Tree> variables) {
+			this.id = id;
+			this.basePath = basePath;
+			this.fragment = fragment;
+			this.root = root;
+			this.variables = variables == null ? null : new HashMap<>(variables);
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+/**
+ * State of an incremental rendering: the rendered regions (top-level
+ * fragments) of a template, and their data dependencies. The regions can be
+ * updated with the "update" method of the TemplateEngine.
+ */
+public class RenderState {
+
+	// --- VARIABLES ---
+
+	/**
+	 * Absolute path of the template.
+	 */
+	protected final String templatePath;
+
+	/**
+	 * The compiled template (the state is rebuilt if the template changes).
+	 */
+	protected Fragment template;
+
+	/**
+	 * Regions of the template (groups of top-level fragments).
+	 */
+	protected Fragment[] regions;
+
+	/**
+	 * IDs of the regions (null = static region).
+	 */
+	protected String[] ids;
+
+	/**
+	 * Rendered content of the regions.
+	 */
+	protected String[] contents;
+
+	/**
+	 * Data dependencies of the regions.
+	 */
+	protected TemplateManifest[] dependencies;
+
+	// --- CONSTRUCTOR ---
+
+	public RenderState(String templatePath) {
+		this.templatePath = templatePath;
+	}
+
+	// --- CONTENT ---
+
+	/**
+	 * Returns the content of a region.
+	 *
+	 * @param id
+	 *            ID of the region
+	 *
+	 * @return rendered content, or null if the ID is unknown
+	 */
+	public String getRegion(String id) {
+		if (ids != null) {
+			for (int i = 0; i < ids.length; i++) {
+				if (id.equals(ids[i])) {
+					return contents[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	// --- GETTERS ---
+
+	public String getTemplatePath() {
+		return templatePath;
+	}
+
+}
\ No newline at end of file
@@ -18,6 +18,8 @@
 package io.datatree.templates;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 
 /**
@@ -26,6 +28,42 @@ import java.nio.charset.Charset;
 public interface ResourceLoader {
 
 	public String loadTemplate(String templatePath, Charset charset) throws IOException;
+
+	/**
+	 * Loads the source of the template. Loaders can override this method to
+	 * return a CharSequence (eg. a CharBuffer) without creating an
+	 * intermediate String.
+	 * 
+	 * @param templatePath
+	 *            path of template
+	 * @param charset
+	 *            charset of template
+	 * 
+	 * @return source of template
+	 * 
+	 * @throws IOException
+	 *             template not found or not readable
+	 */
+	public default CharSequence loadSource(String templatePath, Charset charset) throws IOException {
+		return loadTemplate(templatePath, charset);
+	}
+
+	/**
+	 * Loads the raw (encoded) bytes of the template.
+	 * 
+	 * @param templatePath
+	 *            path of template
+	 * @param charset
+	 *            charset of template
+	 * 
+	 * @return bytes of template
+	 * 
+	 * @throws IOException
+	 *             template not found or not readable
+	 */
+	public default ByteBuffer loadBytes(String templatePath, Charset charset) throws IOException {
+		return charset.encode(CharBuffer.wrap(loadSource(templatePath, charset)));
+	}
 	
 	public long lastModified(String templatePath);
 	
@@ -0,0 +1,268 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ordered list of output segments. The static segments are shared,
+ * pre-encoded buffers of the compiled template; only the dynamic content is
+ * copied (into small, pooled buffers). The result can be written with one
+ * gathering write. Usage:
+ *
+ * <pre>
+ * SegmentList segments = new SegmentList();
+ * try {
+ *     engine.process("index.html", data, segments);
+ *     segments.writeTo(socketChannel);
+ * } finally {
+ *     segments.release();
+ * }
+ * </pre>
+ */
+public class SegmentList implements OutputSink {
+
+	// --- BUFFER POOL ---
+
+	/**
+	 * Size of the pooled buffers of the dynamic content.
+	 */
+	protected static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * Max number of pooled buffers.
+	 */
+	protected static final int MAX_POOLED = 1024;
+
+	protected static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+	protected static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Releases the pooled buffers (eg. under memory pressure).
+	 */
+	public static void clearPool() {
+		while (pool.poll() != null) {
+			pooled.decrementAndGet();
+		}
+	}
+
+	// --- VARIABLES ---
+
+	/**
+	 * Segments (in output order).
+	 */
+	protected final ArrayList<ByteBuffer> segments = new ArrayList<>();
+
+	/**
+	 * Pooled buffers (returned to the pool by the "release" method).
+	 */
+	protected final ArrayList<ByteBuffer> buffers = new ArrayList<>();
+
+	/**
+	 * Current buffer of the dynamic content.
+	 */
+	protected ByteBuffer current;
+
+	/**
+	 * Start of the unsealed part of the current buffer.
+	 */
+	protected int start;
+
+	/**
+	 * Total number of bytes.
+	 */
+	protected long size;
+
+	/**
+	 * Optional hash of the content (updated during the rendering).
+	 */
+	protected MessageDigest digest;
+
+	/**
+	 * Final value of the hash.
+	 */
+	protected byte[] hash;
+
+	// --- OUTPUT SINK ---
+
+	@Override
+	public void writeStatic(ByteBuffer segment) {
+		seal();
+		segments.add(segment);
+		size += segment.remaining();
+		if (digest != null) {
+			digest.update(segment.duplicate());
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer chunk) {
+		size += chunk.remaining();
+		if (digest != null) {
+			digest.update(chunk.duplicate());
+		}
+		while (chunk.hasRemaining()) {
+			if (current == null || !current.hasRemaining()) {
+				seal();
+				current = acquire();
+				buffers.add(current);
+				start = 0;
+			}
+			if (chunk.remaining() <= current.remaining()) {
+				current.put(chunk);
+			} else {
+				ByteBuffer part = chunk.duplicate();
+				part.limit(part.position() + current.remaining());
+				current.put(part);
+				chunk.position(part.position());
+			}
+		}
+	}
+
+	// --- GATHERING WRITE ---
+
+	/**
+	 * Returns the segments (the buffers must not be modified).
+	 *
+	 * @return array of segments
+	 */
+	public ByteBuffer[] getSegments() {
+		seal();
+		return segments.toArray(new ByteBuffer[segments.size()]);
+	}
+
+	/**
+	 * Writes all segments into a blocking channel (eg. a SocketChannel or a
+	 * FileChannel).
+	 *
+	 * @param channel
+	 *            target channel
+	 *
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	public void writeTo(GatheringByteChannel channel) throws IOException {
+		ByteBuffer[] array = getSegments();
+		for (int i = 0; i < array.length; i++) {
+			array[i] = array[i].duplicate();
+		}
+		long remaining = size;
+		int offset = 0;
+		while (remaining > 0) {
+			remaining -= channel.write(array, offset, array.length - offset);
+			while (offset < array.length && !array[offset].hasRemaining()) {
+				offset++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the total number of bytes.
+	 *
+	 * @return size of the content
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the hash of the content as HTTP ETag.
+	 *
+	 * @return quoted ETag, or null if the "digest" is not set
+	 */
+	public String getETag() {
+		if (hash == null) {
+			if (digest == null) {
+				return null;
+			}
+			hash = digest.digest();
+		}
+		return ContentDigest.toETag(hash);
+	}
+
+	/**
+	 * Returns the pooled buffers. The segments must not be used after this
+	 * call.
+	 */
+	public void release() {
+		segments.clear();
+		for (ByteBuffer buffer : buffers) {
+			if (pooled.incrementAndGet() <= MAX_POOLED) {
+				buffer.clear();
+				pool.offer(buffer);
+			} else {
+				pooled.decrementAndGet();
+			}
+		}
+		buffers.clear();
+		current = null;
+		size = 0;
+		hash = null;
+		if (digest != null) {
+			digest.reset();
+		}
+	}
+
+	// --- GETTERS AND SETTERS ---
+
+	public MessageDigest getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Sets the hash algorithm of the ETag. Must be set before the rendering.
+	 *
+	 * @param digest
+	 *            MessageDigest
+	 */
+	public void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+	// --- PROTECTED METHODS ---
+
+	/**
+	 * Adds the unsealed part of the current buffer to the segments.
+	 */
+	protected void seal() {
+		if (current != null && current.position() > start) {
+			ByteBuffer segment = current.duplicate();
+			segment.limit(current.position());
+			segment.position(start);
+			segments.add(segment);
+			start = current.position();
+		}
+	}
+
+	protected static ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(CHUNK_SIZE);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer that encodes the characters into a reusable ByteBuffer, and passes
+ * the encoded chunks to an OutputSink.
+ */
+public class SinkWriter extends Writer {
+
+	// --- PROPERTIES ---
+
+	protected final OutputSink sink;
+
+	protected final CharsetEncoder encoder;
+
+	protected final ByteBuffer buffer;
+
+	/**
+	 * Unencoded high surrogate at the end of the previous write (or 0).
+	 */
+	protected char leftover;
+
+	// --- CONSTRUCTOR ---
+
+	public SinkWriter(OutputSink sink, Charset charset) {
+		this.sink = sink;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.buffer = ByteBuffer.allocate(8192);
+	}
+
+	// --- WRITER METHODS ---
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		if (leftover != 0) {
+
+			// Surrogate pair, split between two writes
+			CharBuffer pair = CharBuffer.wrap(new char[] { leftover, cbuf[off] });
+			leftover = 0;
+			encode(pair, false);
+			if (pair.hasRemaining()) {
+				leftover = pair.get();
+			}
+			off++;
+			len--;
+		}
+		CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+		encode(in, false);
+		if (in.hasRemaining()) {
+			leftover = in.get();
+		}
+		writeBuffer();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sink.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		CharBuffer in = leftover == 0 ? CharBuffer.allocate(0) : CharBuffer.wrap(new char[] { leftover });
+		leftover = 0;
+		encode(in, true);
+		while (encoder.flush(buffer).isOverflow()) {
+			writeBuffer();
+		}
+		writeBuffer();
+		sink.flush();
+	}
+
+	// --- PROTECTED METHODS ---
+
+	/**
+	 * Encodes the characters. The last, unmappable character (a high
+	 * surrogate) remains in the input.
+	 */
+	protected void encode(CharBuffer in, boolean endOfInput) throws IOException {
+		while (encoder.encode(in, buffer, endOfInput).isOverflow()) {
+			writeBuffer();
+		}
+	}
+
+	protected void writeBuffer() throws IOException {
+		if (buffer.position() > 0) {
+			buffer.flip();
+			sink.write(buffer);
+			buffer.clear();
+		}
+	}
+
+}
\ No newline at end of file
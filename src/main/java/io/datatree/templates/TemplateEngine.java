@@ -17,17 +17,42 @@
  */
 package io.datatree.templates;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
+import java.util.zip.Deflater;
 
 import io.datatree.Tree;
 import io.datatree.dom.Cache;
+import io.datatree.templates.RenderContext.DeferredBlock;
 
 /**
  * Server-side template engine. Combines a text template and data from a Tree
@@ -128,6 +153,69 @@ import io.datatree.dom.Cache;
  * Shorter syntax with "fn", parameter is optional:<br>
  * <br>
  * #{fn myFunction}<br>
+ * <br>
+ * The values of the data model can be lazy (Supplier- or Future-backed)
+ * nodes. They are evaluated only when the template accesses them, and
+ * memoized for the rest of the rendering.<br>
+ * <br>
+ * The source of a "#{for}" loop can also be an Iterator, Iterable or Stream.
+ * The elements are pulled one by one during the rendering, so (combined with
+ * the Writer-based "process" methods) an export of any size can run in
+ * constant memory.<br>
+ * <br>
+ * Very large outputs can be rendered into an OutputBuffer, which stores the
+ * end of the content in a temporary file. Mostly static pages can be rendered
+ * into a SegmentList, which references the pre-encoded static parts of the
+ * template instead of copying them. The "processCompressed" method writes
+ * GZIP-compressed output (the fully static pages are compressed only
+ * once).<br>
+ * <br>
+ * Send the rendered part to the client (streaming mode):<br>
+ * <br>
+ * #{flush}<br>
+ * <br>
+ * The "getManifest" method returns the data paths a template can read. In
+ * "memoizePages" mode the rendered pages are cached by the hash of these
+ * values, so the pages that differ only in unused data are not rendered
+ * again.<br>
+ * <br>
+ * Live views can be updated region by region (see the "process(RenderState,
+ * Tree)" and "update" methods): only the top-level fragments that depend on
+ * the changed data paths are rendered again.<br>
+ * <br>
+ * Split pages into cacheable and personalized parts (see "processEsi" and
+ * "processFragment"):<br>
+ * <br>
+ * #{esi}<br>
+ * Hello #{user.name}!<br>
+ * #{end}<br>
+ * <br>
+ * Render slow regions later into placeholders (streaming mode, requires
+ * "asyncPlaceholders" mode):<br>
+ * <br>
+ * #{async}<br>
+ * #{slowService.result}<br>
+ * #{end}<br>
+ * <br>
+ * Comparisons ("gt", "ge", "lt", "le"), set membership ("in", "!in") and
+ * boolean tests ("is", "!is"):<br>
+ * <br>
+ * #{gt price 100}<br>
+ * #{in status 1,2,3}<br>
+ * #{!is enabled}<br>
+ * ...<br>
+ * #{end}<br>
+ * <br>
+ * Macros, expanded inline at compile time (visible in their own file, see
+ * "addMacros" for macros shared by all templates):<br>
+ * <br>
+ * #{macro cell(value, css)}&lt;td class="#{css}"&gt;#{value}&lt;/td&gt;#{end}<br>
+ * #{call cell item.name "name"}<br>
+ * <br>
+ * Built-in formatters (number, currency, date, bytes, truncate):<br>
+ * <br>
+ * #{fn currency price en-US}<br>
+ * #{fn date created yyyy-MM-dd}<br>
  */
 public class TemplateEngine implements FragmentTypes {
 
@@ -136,7 +224,50 @@ public class TemplateEngine implements FragmentTypes {
 	/**
 	 * Cached templates.
 	 */
-	protected final Cache<String, Fragment> cache;
+	protected final WeightedCache<String, Fragment> cache;
+
+	/**
+	 * Sources of the templates added by the "define" method (the compiled
+	 * templates can be evicted from the cache). The sources are pinned: they
+	 * are not counted in the "maxCacheWeight" budget, and stay in memory
+	 * until "remove" or "clear" is called.
+	 */
+	protected final ConcurrentHashMap<String, String> definitions = new ConcurrentHashMap<>();
+
+	/**
+	 * Base URL of the ESI fragments.
+	 */
+	protected String esiBaseUrl = "/fragments";
+
+	/**
+	 * Data paths of the user-specific values (eg. "user" or "session"). In ESI
+	 * mode the top-level regions that depend on these paths are replaced with
+	 * ESI placeholders.
+	 */
+	protected Set<String> personalizedPaths = new HashSet<>();
+
+	/**
+	 * Memoized pages (see "memoizePages").
+	 */
+	protected final WeightedCache<String, String> pages;
+
+	/**
+	 * Memoize the rendered pages by the hash of the values they read (String
+	 * output only, disabled in "reloadTemplates" mode).
+	 */
+	protected boolean memoizePages;
+
+	/**
+	 * Expiration times of the "not found" results (missing templates and
+	 * includes).
+	 */
+	protected final Cache<String, Long> missingTemplates;
+
+	/**
+	 * Time-to-live of the "not found" results, in milliseconds (0 = disable
+	 * caching of missing templates).
+	 */
+	protected long missingTemplateTTL = 5000;
 
 	/**
 	 * Interchangeable template loader.
@@ -159,7 +290,8 @@ public class TemplateEngine implements FragmentTypes {
 	protected Charset charset = StandardCharsets.UTF_8;
 
 	/**
-	 * Initial size of write buffers.
+	 * Initial size of write buffers. In streaming mode the output is written
+	 * out in chunks of this size (see "chunkSize").
 	 */
 	protected int writeBufferSize = 2048;
 
@@ -179,10 +311,94 @@ public class TemplateEngine implements FragmentTypes {
 	protected Map<String, BiConsumer<StringBuilder, Tree>> functions = new HashMap<>();
 
 	/**
-	 * Cached StringBuilders.
+	 * Shared macros, available in all templates (see "addMacros").
+	 */
+	protected Map<String, Fragment> macros = new HashMap<>();
+
+	/**
+	 * Compression level of the "processCompressed" methods (0-9).
+	 */
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Static texts longer than this are passed to the OutputSink as shared,
+	 * pre-encoded buffers.
+	 */
+	protected int staticSegmentSize = 128;
+
+	/**
+	 * In streaming mode, flush the output when this number of characters have
+	 * been rendered (0 = flush only at the "#{flush}" tags, the output is
+	 * written out without flushing at every "writeBufferSize" characters).
+	 */
+	protected int chunkSize;
+
+	/**
+	 * Renders the "#{async}...#{end}" blocks into placeholders, in the order
+	 * their Futures complete (streaming mode only).
+	 */
+	protected boolean asyncPlaceholders;
+
+	/**
+	 * Pool of the shared (content-addressed) fragments. Templates with the
+	 * same source are compiled once (null = no sharing).
+	 */
+	protected FragmentPool fragmentPool = new FragmentPool();
+
+	/**
+	 * Optional off-heap storage of the long static texts (null = the texts
+	 * are stored on the heap).
+	 */
+	protected OffHeapStore offHeapStore;
+
+	/**
+	 * Tenants of the engine (see "addTenant").
+	 */
+	protected final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+	/**
+	 * Prefix of the "virtual" paths of the tenants' templates.
+	 */
+	public static final String TENANT_PREFIX = "@";
+
+	/**
+	 * Merged and precompressed templates by the paths of their layouts and
+	 * included templates.
+	 */
+	protected final ConcurrentHashMap<String, Set<String>> dependents = new ConcurrentHashMap<>();
+
+	/**
+	 * Templates being merged with their layouts (to detect cycles).
+	 */
+	protected final ThreadLocal<LinkedList<String>> extending = ThreadLocal.withInitial(LinkedList::new);
+
+	/**
+	 * Cached StringBuilders (replaced by the "shed" method, so the builders
+	 * of all threads are released).
+	 */
+	protected volatile ThreadLocal<StringBuilder> builders = new ThreadLocal<>();
+
+	/**
+	 * Cached StringBuilders larger than this (eg. after rendering a large
+	 * page) are released instead of being reused.
 	 */
-	protected ThreadLocal<StringBuilder> builders = new ThreadLocal<>();
+	protected int maxBuilderSize = 64 * 1024;
 	
+	/**
+	 * Signals an unfinished Future in non-blocking rendering mode.
+	 */
+	protected static final NotReadyException NOT_READY = new NotReadyException();
+
+	/**
+	 * Marks the templates that are not static (and cannot be precompressed).
+	 */
+	protected static final byte[] NOT_STATIC = new byte[0];
+
+	/**
+	 * Memoized result of a lazy node that returned null.
+	 */
+	protected static final Tree MISSING = new Tree();
+
 	// --- CONSTRUCTORS ---
 
 	public TemplateEngine() {
@@ -190,7 +406,24 @@ public class TemplateEngine implements FragmentTypes {
 	}
 
 	public TemplateEngine(int cacheSize) {
-		cache = new Cache<>(cacheSize);
+		this(cacheSize, 64L * 1024 * 1024);
+	}
+
+	/**
+	 * Creates a new engine.
+	 * 
+	 * @param cacheSize
+	 *            max number of cached templates
+	 * @param maxCacheWeight
+	 *            max estimated size of the cached templates, in bytes (the
+	 *            memoized pages can use an additional quarter of this; the
+	 *            sources added by "define" are not included)
+	 */
+	public TemplateEngine(int cacheSize, long maxCacheWeight) {
+		cache = new WeightedCache<>(cacheSize, maxCacheWeight, Fragment::estimateSize);
+		cache.setRemovalListener(this::release);
+		missingTemplates = new Cache<>(cacheSize);
+		pages = new WeightedCache<>(cacheSize, maxCacheWeight / 4, page -> 40 + 2L * page.length());
 	}
 
 	// --- PUBLIC PAGE-GENERATOR METHODS ---
@@ -230,22 +463,209 @@ public class TemplateEngine implements FragmentTypes {
 	 *             any I/O or syntax exteption
 	 */
 	public String process(String templatePath, Tree data) throws IOException {
-		StringBuilder builder = builders.get();
-		if (builder == null) {
-			builder = new StringBuilder(writeBufferSize);
-			builders.set(builder);
-		} else {
-			builder.setLength(0);
+		String path = getAbsolutePath(templatePath);
+		Fragment template = getTemplate(path);
+		String key = null;
+		if (memoizePages && !reloadTemplates) {
+			key = getPageKey(path, template, data);
+			if (key != null) {
+				String page = pages.get(key);
+				if (page != null) {
+					return page;
+				}
+			}
+		}
+		StringBuilder builder = getBuilder();
+		transform(path, builder, template, data, null, new RenderContext());
+		String page = builder.toString();
+		if (key != null) {
+			pages.put(key, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Executes template, using the JSON data model provided. The JSON is not
+	 * parsed in advance; only the values accessed by the template are decoded.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param json
+	 *            UTF-8 encoded JSON
+	 * 
+	 * @return output of the template
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public String process(String templatePath, byte[] json) throws IOException {
+		return process(templatePath, LazyJson.parse(json));
+	}
+
+	/**
+	 * Executes template, using the JSON data model provided, then writes the
+	 * result into the specified Writer.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param json
+	 *            UTF-8 encoded JSON
+	 * @param out
+	 *            target Writer
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void process(String templatePath, byte[] json, Writer out) throws IOException {
+		process(templatePath, LazyJson.parse(json), out);
+	}
+
+	/**
+	 * Executes template, using the Map-based data model provided, then writes
+	 * the result into the specified Writer.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param data
+	 *            data model as Map
+	 * @param out
+	 *            target Writer
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void process(String templatePath, Map<String, Object> data, Writer out) throws IOException {
+		process(templatePath, new Tree(data), out);
+	}
+
+	/**
+	 * Executes template, using the Tree-based data model provided, then writes
+	 * the result into the specified OutputStream (eg. into an OutputBuffer),
+	 * using the "charset" of the engine.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param data
+	 *            data model as Tree
+	 * @param out
+	 *            target OutputStream
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void process(String templatePath, Tree data, OutputStream out) throws IOException {
+		process(templatePath, data, new OutputStreamWriter(out, charset));
+	}
+
+	/**
+	 * Executes template, using the Tree-based data model provided, then writes
+	 * the GZIP-compressed result into the specified OutputStream. The output
+	 * of the fully static templates is compressed only once, and served from
+	 * the template cache.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param data
+	 *            data model as Tree
+	 * @param out
+	 *            target OutputStream (eg. the stream of a HTTP response with
+	 *            "Content-Encoding: gzip" header)
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void processCompressed(String templatePath, Tree data, OutputStream out) throws IOException {
+		String path = getAbsolutePath(templatePath);
+		byte[] compressed = getCompressed(path, getTemplate(path));
+		if (compressed != null) {
+			out.write(compressed);
+			out.flush();
+			return;
+		}
+		GzipOutput gzip = new GzipOutput(out, compressionLevel);
+		try {
+			process(templatePath, data, gzip);
+			gzip.finish();
+		} finally {
+			gzip.release();
 		}
+	}
+
+	/**
+	 * Executes template, using the Tree-based data model provided, then writes
+	 * the result into the specified Writer. The values of the data model can
+	 * be Futures (eg. CompletableFutures). Everything up to the first
+	 * unfinished Future is written (and flushed) immediately, then the
+	 * rendering continues as the Futures complete. If the "asyncPlaceholders"
+	 * mode is enabled, the "#{async}...#{end}" blocks are rendered later, in
+	 * the order the Futures complete.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param data
+	 *            data model as Tree
+	 * @param out
+	 *            target Writer
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void process(String templatePath, Tree data, Writer out) throws IOException {
+		process(templatePath, data, out, null);
+	}
+
+	/**
+	 * Executes template, using the Tree-based data model provided, then writes
+	 * the result into the specified OutputSink. The static parts of the
+	 * template (which are longer than the "staticSegmentSize") are passed to
+	 * the sink as shared, pre-encoded buffers.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html" or
+	 *            "admin/login.html")
+	 * @param data
+	 *            data model as Tree
+	 * @param sink
+	 *            target OutputSink
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public void process(String templatePath, Tree data, OutputSink sink) throws IOException {
+		SinkWriter writer = new SinkWriter(sink, charset);
+		process(templatePath, data, writer, sink);
+		writer.close();
+	}
+
+	protected void process(String templatePath, Tree data, Writer out, OutputSink sink) throws IOException {
+		StringBuilder builder = getBuilder();
 		String path = getAbsolutePath(templatePath);
-		transform(path, builder, getTemplate(path), data, null);
-		return builder.toString();
+		RenderContext context = new RenderContext(builder, Objects.requireNonNull(out));
+		context.chunkSize = chunkSize > 0 ? chunkSize : writeBufferSize;
+		context.flushChunks = chunkSize > 0;
+		context.sink = sink;
+		if (asyncPlaceholders) {
+			context.deferredBlocks = new LinkedList<>();
+		}
+		transform(path, builder, getTemplate(path), data, null, context);
+		if (context.deferredBlocks != null) {
+			transformDeferredBlocks(context);
+		}
+		context.flush(true);
 	}
 
 	// --- DEFINE TEMPLATE BY SOURCE ---
 
 	/**
-	 * Adds a template based on its (HTML/TEXT/XML) source.
+	 * Adds a template based on its (HTML/TEXT/XML) source. The source is kept
+	 * in memory (outside of the cache's weight limit) until the template is
+	 * removed, so an evicted template can be recompiled.
 	 * 
 	 * @param templatePath
 	 *            "virtual" path of template (eg. "index.html" or
@@ -254,175 +674,1687 @@ public class TemplateEngine implements FragmentTypes {
 	 *            source (~= HTML source and tags)
 	 */
 	public void define(String templatePath, String templateSource) {
-		Fragment template = FragmentBuilder.compile(templateSource, templatePath, 1, functions);
-		cache.put(templatePath, template);
+		Fragment template = compile(templateSource, templatePath, 1);
+		definitions.put(templatePath, templateSource);
+		invalidateDependents(templatePath);
+		if (getExtendsTag(template) == null) {
+			cache(templatePath, template);
+		} else {
+
+			// The layout is merged at the first request
+			cache.remove(templatePath);
+		}
+		missingTemplates.remove(templatePath);
+		pages.clear();
+	}
+
+	/**
+	 * Removes a template from the memory cache.
+	 * 
+	 * @param templatePath
+	 *            path of template
+	 */
+	public void remove(String templatePath) {
+		definitions.remove(templatePath);
+		invalidateDependents(templatePath);
+		cache.remove(templatePath);
+		missingTemplates.clear();
+		pages.clear();
+	}
+
+	/**
+	 * Returns true if the memory cache contains a mapping for the specified
+	 * template.
+	 * 
+	 * @param templatePath
+	 *            path of template
+	 * 
+	 * @return Returns true if the cache contains a mapping for the specified
+	 *         template.
+	 */
+	public boolean contains(String templatePath) {
+		return cache.containsKey(templatePath);
+	}
+
+	/**
+	 * Removes all templates from the memory.
+	 */
+	public void clear() {
+		definitions.clear();
+		dependents.clear();
+		cache.clear();
+		missingTemplates.clear();
+		pages.clear();
+	}
+
+	/**
+	 * Removes the compiled templates (and the pooled fragments), when a
+	 * setting of the encoded static texts (charset, off-heap storage, segment
+	 * size) changes. The defined templates are recompiled on the next request.
+	 */
+	protected void clearCompiled() {
+		cache.clear();
+		pages.clear();
+		if (fragmentPool != null) {
+			fragmentPool.clear();
+		}
+	}
+
+	// --- MEMORY PRESSURE ---
+
+	/**
+	 * Releases the cold compiled templates (half of the template cache), the
+	 * memoized pages, the pooled buffers and the cached StringBuilders of all
+	 * threads. The templates are recompiled on the next request. Called automatically under memory pressure (see
+	 * "enableMemoryShedding").
+	 */
+	public void shed() {
+		cache.shrink(cache.getWeight() / 2);
+		pages.clear();
+
+		// The entries of the old ThreadLocal become stale in every thread
+		builders = new ThreadLocal<>();
+		GzipOutput.clearPool();
+		SegmentList.clearPool();
+	}
+
+	/**
+	 * Calls the "shed" method automatically, when the heap usage (after a
+	 * garbage collection) exceeds the specified threshold.
+	 * 
+	 * @param usageThreshold
+	 *            heap usage threshold (eg. 0.85 = 85% of the max heap size)
+	 */
+	public void enableMemoryShedding(double usageThreshold) {
+		MemoryWatcher.register(this, usageThreshold);
+	}
+
+	/**
+	 * Disables the automatic "shed" calls.
+	 */
+	public void disableMemoryShedding() {
+		MemoryWatcher.unregister(this);
+	}
+
+	// --- INCREMENTAL RENDERING ---
+
+	/**
+	 * Executes template, and stores the rendered regions (top-level fragments)
+	 * into the specified state. The dynamic regions of the output are marked
+	 * with HTML comments (eg. "&lt;!--r1--&gt;...&lt;!--/r1--&gt;").
+	 * 
+	 * @param state
+	 *            new render state (eg. "new RenderState("dashboard.html")")
+	 * @param data
+	 *            data model as Tree
+	 * 
+	 * @return output of the template
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public String process(RenderState state, Tree data) throws IOException {
+		String path = getAbsolutePath(state.templatePath);
+		Fragment template = getTemplate(path);
+		initState(path, state, template);
+		StringBuilder builder = getBuilder();
+		for (int i = 0; i < state.ids.length; i++) {
+			Fragment region = state.regions[i];
+			if (state.ids[i] == null) {
+				for (Fragment child : region.children) {
+					builder.append(getStaticText(child));
+				}
+				continue;
+			}
+			state.contents[i] = renderRegion(path, region, data);
+			writeRegion(builder, state.ids[i], state.contents[i]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Re-renders the regions, which depend on the changed data paths.
+	 * 
+	 * @param state
+	 *            state of the previous rendering
+	 * @param data
+	 *            the changed data model
+	 * @param changedPaths
+	 *            changed data paths (eg. "user.name" or "rows[2].price")
+	 * 
+	 * @return new contents of the changed regions
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public List<RegionPatch> update(RenderState state, Tree data, Collection<String> changedPaths)
+			throws IOException {
+		String path = getAbsolutePath(state.templatePath);
+		Fragment template = getTemplate(path);
+		boolean all = template != state.template;
+		if (all) {
+
+			// The template has been changed
+			initState(path, state, template);
+		}
+		LinkedList<RegionPatch> patches = new LinkedList<>();
+		for (int i = 0; i < state.ids.length; i++) {
+			if (state.ids[i] == null || !(all || isAffected(state.dependencies[i], changedPaths))) {
+				continue;
+			}
+			String content = renderRegion(path, state.regions[i], data);
+			if (!content.equals(state.contents[i])) {
+				state.contents[i] = content;
+				patches.add(new RegionPatch(state.ids[i], content));
+			}
+		}
+		return patches;
+	}
+
+	// --- EDGE SIDE INCLUDES ---
+
+	/**
+	 * Executes template in ESI mode. The "#{esi}...#{end}" blocks (outside of
+	 * the loops) and the top-level regions that depend on the
+	 * "personalizedPaths" are replaced with ESI placeholders. The
+	 * placeholders refer to the URL of the fragment (see "getFragmentUrl"),
+	 * which can be rendered with the "processFragment" method.
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * @param data
+	 *            data model as Tree (without the personalized data)
+	 * 
+	 * @return cacheable output of the template
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public String processEsi(String templatePath, Tree data) throws IOException {
+		String path = getAbsolutePath(templatePath);
+		Fragment template = getTemplate(path);
+		StringBuilder builder = getBuilder();
+		RenderContext context = new RenderContext();
+		context.esi = true;
+		for (Fragment region : getRegions(template)) {
+			if (region.arg != null && isPersonalized(path, region)) {
+				writeEsiInclude(builder, getFragmentUrl(path, region.arg));
+			} else {
+				transformChildren(path, builder, region, data, null, context);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Renders one fragment of a template (the content of an ESI placeholder).
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * @param fragmentId
+	 *            ID of the fragment (the name of an ESI block, its position in
+	 *            the template, eg. "3-0", or a top-level region, eg. "r2")
+	 * @param data
+	 *            data model as Tree
+	 * 
+	 * @return rendered fragment
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public String processFragment(String templatePath, String fragmentId, Tree data) throws IOException {
+		String path = getAbsolutePath(templatePath);
+		Fragment template = getTemplate(path);
+		Fragment fragment = findEsiBlock(template, fragmentId);
+		if (fragment == null && fragmentId.startsWith("r")) {
+			for (Fragment region : getRegions(template)) {
+				if (fragmentId.equals(region.arg)) {
+					fragment = region;
+					break;
+				}
+			}
+		}
+		if (fragment == null) {
+			throw new IllegalArgumentException("Unknown fragment: " + fragmentId);
+		}
+		StringBuilder builder = getBuilder();
+		transformChildren(path, builder, fragment, data, null, new RenderContext());
+		return builder.toString();
+	}
+
+	// --- DATA-DEPENDENCY MANIFEST ---
+
+	/**
+	 * Returns the data paths, loops, functions and includes of a template
+	 * (including its included templates).
+	 * 
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * 
+	 * @return manifest of the template
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public TemplateManifest getManifest(String templatePath) throws IOException {
+		String path = getAbsolutePath(templatePath);
+		return getManifest(path, getTemplate(path));
+	}
+
+	// --- TENANTS ---
+
+	/**
+	 * Adds a tenant. The templates of the tenant are loaded from the
+	 * specified (overlay) directory, or, if the tenant has no own version,
+	 * from the "rootDirectory". The compiled templates are stored in the
+	 * shared cache, but their total estimated size cannot exceed the quota
+	 * (the least recently used templates of the tenant are evicted).
+	 * 
+	 * @param name
+	 *            name of the tenant (eg. "acme")
+	 * @param directory
+	 *            overlay directory of the tenant (eg. "/web/tenants/acme")
+	 * @param maxWeight
+	 *            quota of the tenant in the template cache, in bytes
+	 * 
+	 * @return the new tenant
+	 */
+	public Tenant addTenant(String name, String directory, long maxWeight) {
+		if (name == null || name.isEmpty() || name.indexOf('/') != -1) {
+			throw new IllegalArgumentException("Invalid tenant name:" + name);
+		}
+		Tenant tenant = new Tenant(name, Objects.requireNonNull(directory).replace('\\', '/'), maxWeight);
+		removeTenant(name);
+		tenants.put(name, tenant);
+		return tenant;
+	}
+
+	/**
+	 * Removes a tenant and its templates from the cache.
+	 * 
+	 * @param name
+	 *            name of the tenant
+	 */
+	public void removeTenant(String name) {
+		Tenant tenant = tenants.remove(name);
+		if (tenant != null) {
+			for (String templatePath : tenant.getTemplatePaths()) {
+				cache.remove(templatePath);
+			}
+			String prefix = getTenantPath(name, "");
+			definitions.keySet().removeIf(templatePath -> templatePath.startsWith(prefix));
+			missingTemplates.clear();
+			pages.clear();
+		}
+	}
+
+	public Tenant getTenant(String name) {
+		return tenants.get(name);
+	}
+
+	/**
+	 * Executes the template of a tenant (see "addTenant").
+	 * 
+	 * @param tenant
+	 *            name of the tenant
+	 * @param templatePath
+	 *            relative path to template with extension (eg. "index.html")
+	 * @param data
+	 *            data model as Tree
+	 * 
+	 * @return rendered template as String
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	public String process(String tenant, String templatePath, Tree data) throws IOException {
+		return process(getTenantPath(tenant, templatePath), data);
+	}
+
+	/**
+	 * Returns the "virtual" path of a tenant's template (eg. "@acme/index.html").
+	 * The virtual path can be used with all "process" methods.
+	 * 
+	 * @param tenant
+	 *            name of the tenant
+	 * @param templatePath
+	 *            relative path to template (eg. "index.html")
+	 * 
+	 * @return virtual path of the template
+	 */
+	public static String getTenantPath(String tenant, String templatePath) {
+		String path = templatePath.replace('\\', '/');
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return TENANT_PREFIX + tenant + '/' + path;
+	}
+
+	/**
+	 * Returns the tenant of a virtual path (or null).
+	 */
+	protected Tenant getTenantOf(String templatePath) {
+		if (templatePath == null || !templatePath.startsWith(TENANT_PREFIX)) {
+			return null;
+		}
+		int i = templatePath.indexOf('/');
+		String name = i == -1 ? templatePath.substring(1) : templatePath.substring(1, i);
+		Tenant tenant = tenants.get(name);
+		if (tenant == null) {
+			throw new IllegalArgumentException("Unknown tenant: " + name);
+		}
+		return tenant;
+	}
+
+	/**
+	 * Stores a compiled template, and enforces the tenant's quota.
+	 */
+	protected void cache(String templatePath, Fragment template) {
+		if (offHeapStore != null) {
+			offHeapStore.acquire(template);
+		}
+		Tenant tenant = getTenantOf(templatePath);
+		if (tenant == null) {
+			cache.put(templatePath, template);
+			return;
+		}
+		tenant.added(templatePath, template, template.estimateSize());
+		cache.put(templatePath, template);
+		for (String victim : tenant.getVictims(templatePath)) {
+			cache.remove(victim);
+		}
+	}
+
+	// --- CUSTOM FUNCTIONS / HTML RENDERERS ---
+
+	public void addFunction(String name, BiConsumer<StringBuilder, Tree> function) {
+		if (name == null || name.isEmpty() || name.contains(" ")) {
+			throw new IllegalArgumentException("Invalid function name:" + name);
+		}
+		functions.put(name, Objects.requireNonNull(function));
+		if (fragmentPool != null) {
+			fragmentPool.clear();
+		}
+	}
+
+	// --- SHARED MACROS ---
+
+	/**
+	 * Adds the macros of a macro library to all templates. The macros of a
+	 * template ("#{macro name(a, b)}...#{end}") are visible only in their own
+	 * file; the shared macros can be called from any template. Macros are
+	 * expanded at compile time, so the already compiled templates are not
+	 * affected.
+	 * 
+	 * @param source
+	 *            source of the macro library (the content outside the macros
+	 *            is ignored)
+	 */
+	public void addMacros(String source) {
+		macros = FragmentBuilder.compileMacros(source, functions, macros);
+		if (fragmentPool != null) {
+			fragmentPool.clear();
+		}
+	}
+
+	// --- PROTECTED METHODS ---
+
+	protected StringBuilder getBuilder() {
+		ThreadLocal<StringBuilder> local = builders;
+		StringBuilder builder = local.get();
+		if (builder == null || builder.capacity() > maxBuilderSize) {
+			builder = new StringBuilder(writeBufferSize);
+			local.set(builder);
+		} else {
+			builder.setLength(0);
+		}
+		return builder;
+	}
+
+	protected Fragment getTemplate(String templatePath) throws IOException {
+		Fragment template = cache.get(templatePath);
+		String definition = definitions.get(templatePath);
+		if (definition != null) {
+			if (template == null) {
+
+				// Defined template (evicted from the cache)
+				template = extend(templatePath, compile(definition, templatePath, 1));
+				cache(templatePath, template);
+			}
+			return template;
+		}
+		boolean loadable = template == null;
+		if (reloadTemplates && !loadable) {
+			long modified = Long.parseLong(template.content);
+			long lastModified = lastModified(templatePath);
+			loadable = lastModified < 1 || lastModified > modified;
+			if (!loadable && template.ancestors != null) {
+				for (String ancestor : template.ancestors) {
+					if (lastModified(ancestor) > modified) {
+						loadable = true;
+						break;
+					}
+				}
+			}
+		}
+		if (loadable) {
+			CharSequence source = loadSource(templatePath);
+			if (templatePreProcessor != null) {
+				source = templatePreProcessor.apply(source.toString());
+			}
+			long lastModified = lastModified(templatePath);
+			template = extend(templatePath, compile(source, templatePath, lastModified));
+			cache(templatePath, template);
+		} else if (templatePath.startsWith(TENANT_PREFIX)) {
+			getTenantOf(templatePath).touch(templatePath);
+		}
+		return template;
+	}
+
+	protected Fragment compile(CharSequence source, String templatePath, long lastModified) {
+		Fragment template;
+		OffHeapStore store = offHeapStore;
+		Consumer<Fragment> initializer = null;
+		if (store != null) {
+			initializer = compiled -> store.encode(compiled, charset, staticSegmentSize);
+		}
+		if (fragmentPool == null) {
+			template = FragmentBuilder.compile(source, templatePath, lastModified, functions, macros);
+			if (initializer != null) {
+				initializer.accept(template);
+			}
+		} else {
+			template = fragmentPool.compile(source, templatePath, lastModified, functions, macros, initializer);
+		}
+		return template;
+	}
+
+	// --- LAYOUT INHERITANCE ---
+
+	/**
+	 * Merges the template with its layout ("#{extends path}"). The blocks of
+	 * the layout ("#{block name}...#{end}") are replaced with the blocks of
+	 * the template, the content outside the blocks of the template is
+	 * ignored. The result is a single Fragment tree, which can be rendered
+	 * without looking up the layouts.
+	 * 
+	 * @param templatePath
+	 *            absolute path of the template
+	 * @param template
+	 *            the compiled template
+	 * 
+	 * @return the merged template (or the template, if it has no layout)
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	protected Fragment extend(String templatePath, Fragment template) throws IOException {
+		Fragment extendsTag = getExtendsTag(template);
+		if (extendsTag == null) {
+			return template;
+		}
+		LinkedList<String> stack = extending.get();
+		if (stack.contains(templatePath) || stack.size() > 16) {
+			throw new IllegalArgumentException("Circular layout inheritance: " + templatePath);
+		}
+		String layoutPath = getAbsolutePath(templatePath, extendsTag.arg);
+		Fragment layout;
+		stack.push(templatePath);
+		try {
+			layout = getTemplate(layoutPath);
+		} finally {
+			stack.pop();
+		}
+		HashMap<String, Fragment> blocks = new HashMap<>();
+		collectBlocks(template, blocks);
+		Fragment root = new Fragment();
+		root.arg = templatePath;
+		root.children = assignFragmentIds(override(layoutPath, layout.children, blocks), "");
+
+		// Modified when the template or any of its layouts changes
+		long lastModified = Math.max(Long.parseLong(template.content), Long.parseLong(layout.content));
+		root.content = Long.toString(lastModified);
+		int length = layout.ancestors == null ? 0 : layout.ancestors.length;
+		root.ancestors = new String[length + 1];
+		root.ancestors[0] = layoutPath;
+		if (length > 0) {
+			System.arraycopy(layout.ancestors, 0, root.ancestors, 1, length);
+		}
+		for (String ancestor : root.ancestors) {
+			dependents.computeIfAbsent(ancestor, key -> ConcurrentHashMap.newKeySet()).add(templatePath);
+		}
+		return root;
+	}
+
+	protected Fragment getExtendsTag(Fragment template) {
+		if (template.children != null) {
+			for (Fragment child : template.children) {
+				if (child.type == EXTENDS) {
+					return child;
+				}
+			}
+		}
+		return null;
+	}
+
+	protected void collectBlocks(Fragment command, HashMap<String, Fragment> blocks) {
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				if (child.type == BLOCK) {
+					blocks.putIfAbsent(child.content, child);
+				}
+				collectBlocks(child, blocks);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the blocks of the layout. The relative includes of the layout
+	 * are converted to absolute paths (they are rendered with the path of
+	 * the template).
+	 */
+	protected Fragment[] override(String layoutPath, Fragment[] children, HashMap<String, Fragment> blocks) {
+		if (children == null) {
+			return null;
+		}
+		Fragment[] merged = new Fragment[children.length];
+		for (int i = 0; i < children.length; i++) {
+			Fragment child = children[i];
+			Fragment block = child.type == BLOCK ? blocks.get(child.content) : null;
+			if (block != null) {
+				merged[i] = block;
+			} else if (child.type == INSERTABLE_TEMPLATE_FILE) {
+				merged[i] = child.copy();
+				merged[i].arg = getAbsolutePath(layoutPath, child.arg);
+			} else if (child.children != null) {
+				merged[i] = child.copy();
+				merged[i].children = override(layoutPath, child.children, blocks);
+			} else {
+				merged[i] = child;
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Reassigns the IDs of the unnamed ESI blocks (positions in the merged
+	 * Fragment tree). The IDs assigned by the compiler are unique only within
+	 * the template or layout file. The modified Fragments are copied (the
+	 * blocks may be shared with the template).
+	 */
+	protected Fragment[] assignFragmentIds(Fragment[] children, String prefix) {
+		if (children == null) {
+			return null;
+		}
+		Fragment[] result = children;
+		for (int i = 0; i < children.length; i++) {
+			Fragment child = children[i];
+			String id = prefix + i;
+			Fragment[] grandChildren = assignFragmentIds(child.children, id + '-');
+			boolean unnamed = child.type == ESI_BLOCK && child.arg == null && !id.equals(child.content);
+			if (grandChildren != child.children || unnamed) {
+				Fragment copy = child.copy();
+				copy.children = grandChildren;
+				if (unnamed) {
+					copy.content = id;
+				}
+				if (result == children) {
+					result = children.clone();
+				}
+				result[i] = copy;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the templates, which depend on a changed layout or included
+	 * template (merged or precompressed templates), from the cache.
+	 */
+	protected void invalidateDependents(String layoutPath) {
+		Set<String> templatePaths = dependents.remove(layoutPath);
+		if (templatePaths != null) {
+			for (String templatePath : templatePaths) {
+				cache.remove(templatePath);
+			}
+		}
+	}
+
+	/**
+	 * Frees the off-heap static texts of an evicted template.
+	 */
+	protected void release(Fragment template) {
+		if (offHeapStore != null) {
+			offHeapStore.release(template);
+		}
+		String templatePath = template.arg;
+		if (templatePath != null && templatePath.startsWith(TENANT_PREFIX) && templatePath.indexOf('/') != -1) {
+			Tenant tenant = tenants.get(templatePath.substring(1, templatePath.indexOf('/')));
+			if (tenant != null) {
+				tenant.removed(templatePath, template);
+			}
+		}
+	}
+
+	/**
+	 * Returns the text of a static fragment (decodes the off-heap texts).
+	 */
+	protected String getStaticText(Fragment command) {
+		String text = command.content;
+		if (text == null && command.segment != null) {
+			return charset.decode(command.bytes.duplicate()).toString();
+		}
+		return text;
+	}
+
+	/**
+	 * Loads the source of a template. The templates of the tenants are loaded
+	 * from the tenant's directory, or (if missing) from the root directory.
+	 */
+	protected CharSequence loadSource(String templatePath) throws IOException {
+		Tenant tenant = getTenantOf(templatePath);
+		if (tenant == null) {
+			return loadResource(templatePath);
+		}
+		String relativePath = templatePath.substring(templatePath.indexOf('/') + 1);
+		try {
+			return loadResource(tenant.directory + '/' + relativePath);
+		} catch (TemplateNotFoundException | FileNotFoundException | NoSuchFileException notFound) {
+			return loadResource(getAbsolutePath(relativePath));
+		}
+	}
+
+	protected long lastModified(String templatePath) {
+		Tenant tenant = getTenantOf(templatePath);
+		if (tenant == null) {
+			return loader.lastModified(templatePath);
+		}
+		String relativePath = templatePath.substring(templatePath.indexOf('/') + 1);
+		long lastModified = loader.lastModified(tenant.directory + '/' + relativePath);
+		if (lastModified > 0) {
+			return lastModified;
+		}
+		return loader.lastModified(getAbsolutePath(relativePath));
+	}
+
+	protected CharSequence loadResource(String templatePath) throws IOException {
+		if (missingTemplateTTL < 1) {
+			return loader.loadSource(templatePath, charset);
+		}
+		Long expires = missingTemplates.get(templatePath);
+		if (expires != null) {
+
+			// Trusted until it expires (also in reload mode)
+			if (expires > System.currentTimeMillis()) {
+				throw new TemplateNotFoundException(templatePath);
+			}
+			missingTemplates.remove(templatePath);
+		}
+		try {
+			return loader.loadSource(templatePath, charset);
+		} catch (TemplateNotFoundException | FileNotFoundException | NoSuchFileException notFound) {
+			missingTemplates.put(templatePath, System.currentTimeMillis() + missingTemplateTTL);
+			throw notFound;
+		}
+	}
+
+	protected void transform(String basePath, StringBuilder builder, Fragment command, Tree root,
+			HashMap<String, Tree> variables, RenderContext context) throws IOException {
+		String path = command.type == FUNCTION ? command.content : command.arg;
+		Tree current = root;
+		if (variables != null && path != null) {
+			for (String key : variables.keySet()) {
+				if (path.startsWith(key) && (path.length() == key.length() || path.charAt(key.length()) == '.')) {
+					if (path.length() == key.length()) {
+						path = "";
+					} else {
+						path = path.substring(key.length() + 1);
+					}
+					current = variables.get(key);
+					break;
+				}
+			}
+		}
+		switch (command.type) {
+		case STATIC_TEXT:
+			String text = command.content;
+			if (context.sink != null && builder == context.builder
+					&& (text == null || text.length() >= staticSegmentSize)) {
+				context.flush(false);
+				context.sink.writeStatic(getStaticSegment(command));
+				return;
+			}
+			builder.append(text == null ? getStaticText(command) : text);
+			return;
+
+		case INSERTABLE_VARIABLE:
+			Tree node = getNode(current, path, context);
+			if (node == null || writePrimitive(builder, node.asObject())) {
+				return;
+			}
+			String value = node.asString();
+			if (value != null && !value.isEmpty()) {
+				if (escapeSpecialCharacters) {
+					writeXMLContent(builder, value);
+				} else {
+					builder.append(value);
+				}
+			}
+			return;
+
+		case INSERTABLE_TEMPLATE_FILE:
+			String subTemplatePath = getAbsolutePath(basePath, command.arg);
+			Fragment include = getTemplate(subTemplatePath);
+			if (include == null) {
+				return;
+			}
+			transform(subTemplatePath, builder, include, root, variables, context);
+			return;
+
+		case FUNCTION:
+			int start = builder.length();
+			if (command.content == null) {
+				command.function.accept(builder, resolve(current, context));
+			} else {
+				command.function.accept(builder, getNode(current, path, context));
+			}
+			if (escapeSpecialCharacters && command.function instanceof Formatters.TextFormatter) {
+				escapeXMLContent(builder, start);
+			}
+			return;
+
+		case FOR_CYCLE:
+			if (variables == null) {
+				variables = new HashMap<String, Tree>();
+			}
+			Tree parent = getNode(current, path, context);
+			if (parent != null) {
+				Object source = parent.asObject();
+				if (context.nonBlocking && (source instanceof BaseStream || source instanceof Iterator)) {
+
+					// One-shot source in an async block (replayed if the block
+					// is rendered again)
+					transformLoop(basePath, builder, command, root, variables, context,
+							context.getBufferedSource(source).iterator());
+				} else if (source instanceof BaseStream) {
+
+					// Stream (eg. rows of a database query)
+					try (BaseStream<?, ?> stream = (BaseStream<?, ?>) source) {
+						transformLoop(basePath, builder, command, root, variables, context, stream.iterator());
+					}
+				} else if (source instanceof Iterator) {
+
+					// Iterator (eg. a paged cursor)
+					transformLoop(basePath, builder, command, root, variables, context, (Iterator<?>) source);
+				} else if (source instanceof Iterable && !(source instanceof Collection)) {
+
+					// Other Iterable (eg. a lazy result set)
+					transformLoop(basePath, builder, command, root, variables, context,
+							((Iterable<?>) source).iterator());
+				} else {
+
+					// Materialized array or Map
+					transformLoop(basePath, builder, command, root, variables, context, parent.iterator());
+				}
+			}
+			variables = null;
+			return;
+			
+		// --- TAGS WITH "CHILDREN" ---
+			
+		case CONDITION_TAG_EXISTS:
+			if (getNode(current, path, context) == null) {
+				return;
+			}
+			break;
+
+		case CONDITION_TAG_NOT_EXISTS:
+			if (getNode(current, path, context) == null) {
+				break;
+			}
+			return;
+
+		case CONDITION_TAG_VALUE_EQUALS:
+		case CONDITION_TAG_EXPRESSION:
+			if (command.condition.test(getNode(current, path, context))) {
+				break;
+			}
+			return;
+
+		case CONDITION_TAG_VALUE_NOT_EQUALS:
+			if (command.condition.test(getNode(current, path, context))) {
+				return;
+			}
+			break;
+
+		case ESI_BLOCK:
+			if (context.esi && variables == null) {
+				writeEsiInclude(builder, getFragmentUrl(basePath, command.content));
+				return;
+			}
+			break;
+
+		case FLUSH:
+			if (builder == context.builder) {
+				context.flush(true);
+			}
+			return;
+
+		case ASYNC_BLOCK:
+			if (context.deferredBlocks != null && !context.nonBlocking) {
+				String id = "async-" + (++context.blockCounter);
+				writePlaceholder(builder, id);
+				context.deferredBlocks.add(new DeferredBlock(id, basePath, command, root, variables));
+				return;
+			}
+			break;
+
+		default:
+			break;
+		}
+		transformChildren(basePath, builder, command, root, variables, context);
+	}
+
+	protected void transformChildren(String basePath, StringBuilder builder, Fragment command, Tree root,
+			HashMap<String, Tree> variables, RenderContext context) throws IOException {
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				transform(basePath, builder, child, root, variables, context);
+				context.flushChunk(builder);
+			}
+		}
+	}
+
+	// --- LAZY VALUES ---
+
+	/**
+	 * Returns the node of the specified path. Lazy nodes (Suppliers) on the
+	 * path are evaluated on first access, and memoized for the rest of the
+	 * rendering.
+	 * 
+	 * @param current
+	 *            parent node
+	 * @param path
+	 *            relative path (eg. "user.address.city")
+	 * @param context
+	 *            state of the current rendering
+	 * 
+	 * @return node, or null if the path does not exist
+	 */
+	protected Tree getNode(Tree current, String path, RenderContext context) throws IOException {
+		Tree parent = resolve(current, context);
+		if (parent == null) {
+			return null;
+		}
+		Tree node = parent.get(path);
+		if (node != null) {
+			return resolve(node, context);
+		}
+		if (path == null) {
+			return null;
+		}
+
+		// The path may cross a lazy node (eg. "user" is a Supplier in
+		// "user.address.city")
+		int i = path.indexOf('.');
+		while (i > 0) {
+			node = parent.get(path.substring(0, i));
+			if (node == null) {
+				return null;
+			}
+			Object value = node.asObject();
+			if (value instanceof Supplier || value instanceof Future) {
+				return getNode(resolve(node, context), path.substring(i + 1), context);
+			}
+			i = path.indexOf('.', i + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Evaluates a lazy (Supplier- or Future-backed) node. The result is
+	 * memoized for the rest of the rendering. A null result is a missing node
+	 * (eg. "#{ex user}" is false).
+	 * 
+	 * @param node
+	 *            node (lazy or regular)
+	 * @param context
+	 *            state of the current rendering
+	 * 
+	 * @return resolved node, or null if the lazy value is null
+	 * 
+	 * @throws IOException
+	 *             the Future completed exceptionally
+	 */
+	protected Tree resolve(Tree node, RenderContext context) throws IOException {
+		if (node == null) {
+			return null;
+		}
+		Object value = node.asObject();
+		if (!(value instanceof Supplier) && !(value instanceof Future)) {
+			return node;
+		}
+		Tree resolved = context.getResolvedValue(value);
+		if (resolved == null) {
+			Object object;
+			if (value instanceof Supplier) {
+				object = ((Supplier<?>) value).get();
+			} else {
+				object = waitFor((Future<?>) value, context);
+			}
+			if (object == null) {
+				resolved = null;
+			} else if (object instanceof Tree) {
+				resolved = resolve((Tree) object, context);
+			} else {
+				resolved = resolve(new Tree().setObject(object), context);
+			}
+			context.setResolvedValue(value, resolved == null ? MISSING : resolved);
+			return resolved;
+		}
+		return resolved == MISSING ? null : resolved;
+	}
+
+	/**
+	 * Pulls the elements of the loop source one by one. In streaming mode the
+	 * output buffer is written out in chunks (see "RenderContext.flushChunk"),
+	 * so the size of the output doesn't affect the memory usage.
+	 */
+	protected void transformLoop(String basePath, StringBuilder builder, Fragment command, Tree root,
+			HashMap<String, Tree> variables, RenderContext context, Iterator<?> elements) throws IOException {
+		while (elements.hasNext()) {
+			Object element = elements.next();
+			Tree child;
+			if (element instanceof Tree) {
+				child = (Tree) element;
+			} else {
+				child = new Tree().setObject(element);
+			}
+			variables.put(command.content, child);
+			transformChildren(basePath, builder, command, root, variables, context);
+		}
+	}
+
+	/**
+	 * Returns the (cached) encoded form of a static text. The bytes are stored
+	 * in a direct buffer, owned by the compiled template.
+	 * 
+	 * @param command
+	 *            static text fragment
+	 * 
+	 * @return shared, read-only buffer
+	 */
+	protected ByteBuffer getStaticSegment(Fragment command) {
+		ByteBuffer segment = command.bytes;
+		if (segment == null) {
+			ByteBuffer encoded = charset.encode(command.content);
+			segment = ByteBuffer.allocateDirect(encoded.remaining());
+			segment.put(encoded);
+			segment.flip();
+			segment = segment.asReadOnlyBuffer();
+			command.bytes = segment;
+		}
+		return segment.duplicate();
+	}
+
+	/**
+	 * Returns the precompressed output of a fully static template.
+	 * 
+	 * @param templatePath
+	 *            absolute path of the template
+	 * @param template
+	 *            the compiled template
+	 * 
+	 * @return GZIP-compressed output, or null if the template is not static
+	 * 
+	 * @throws IOException
+	 *             any I/O or syntax exteption
+	 */
+	protected byte[] getCompressed(String templatePath, Fragment template) throws IOException {
+		byte[] compressed = template.compressed;
+		if (compressed == null) {
+			if (isStatic(templatePath, template, 0)) {
+
+				// Invalidated when an included template is redefined
+				for (String include : getManifest(templatePath, template).getIncludes()) {
+					dependents.computeIfAbsent(include, key -> ConcurrentHashMap.newKeySet()).add(templatePath);
+				}
+				StringBuilder builder = new StringBuilder(writeBufferSize);
+				transform(templatePath, builder, template, new Tree(), null, new RenderContext());
+				compressed = GzipOutput.compress(builder.toString().getBytes(charset), compressionLevel);
+			} else {
+				compressed = NOT_STATIC;
+			}
+			template.compressed = compressed;
+		}
+		return compressed == NOT_STATIC ? null : compressed;
+	}
+
+	/**
+	 * Returns true if the template (and its included templates) contains only
+	 * static texts. In "reloadTemplates" mode the templates with includes are
+	 * not considered static (the root template is not reloaded when an
+	 * included template changes).
+	 */
+	protected boolean isStatic(String templatePath, Fragment template, int depth) throws IOException {
+		if (template.children == null) {
+			return true;
+		}
+		for (Fragment child : template.children) {
+			if (child.type == STATIC_TEXT) {
+				continue;
+			}
+			if (child.type == BLOCK) {
+				if (!isStatic(templatePath, child, depth)) {
+					return false;
+				}
+				continue;
+			}
+			if (child.type != INSERTABLE_TEMPLATE_FILE || reloadTemplates || depth > 16) {
+				return false;
+			}
+			String includePath = getAbsolutePath(templatePath, child.arg);
+			if (!isStatic(includePath, getTemplate(includePath), depth + 1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// --- REGIONS ---
+
+	protected void initState(String templatePath, RenderState state, Fragment template) throws IOException {
+		Fragment[] regions = getRegions(template);
+		state.template = template;
+		state.regions = regions;
+		state.ids = new String[regions.length];
+		state.contents = new String[regions.length];
+		state.dependencies = new TemplateManifest[regions.length];
+		for (int i = 0; i < regions.length; i++) {
+			Fragment region = regions[i];
+			if (region.arg != null) {
+				TemplateManifest dependencies = new TemplateManifest();
+				collectDependencies(templatePath, region, new HashMap<>(), dependencies, 0);
+				state.ids[i] = region.arg;
+				state.dependencies[i] = dependencies;
+			}
+		}
+	}
+
+	/**
+	 * Splits the top-level fragments of a template into regions. A region
+	 * starts and ends between HTML elements (never inside a tag, comment or
+	 * the text of a "script", "style", "title" or "textarea" element), so it
+	 * can be marked with HTML comments or replaced with an ESI tag. The ID of
+	 * a dynamic region (eg. "r3") is stored in its "arg", static regions have
+	 * no ID.
+	 * 
+	 * @param template
+	 *            the compiled template
+	 * 
+	 * @return regions of the template
+	 */
+	protected Fragment[] getRegions(Fragment template) {
+		Fragment[] regions = template.regions;
+		if (regions == null) {
+			Fragment[] children = template.children == null ? new Fragment[0] : template.children;
+			LinkedList<Fragment> list = new LinkedList<>();
+			HtmlContext html = new HtmlContext();
+			int start = 0;
+			boolean dynamic = false;
+			for (int i = 0; i < children.length; i++) {
+				Fragment child = children[i];
+				if (child.type == STATIC_TEXT) {
+					html.scan(getStaticText(child));
+				} else {
+					dynamic = true;
+				}
+				if (html.isText() || i == children.length - 1) {
+					Fragment region = new Fragment();
+					region.children = Arrays.copyOfRange(children, start, i + 1);
+					if (dynamic) {
+						region.arg = "r" + start;
+					}
+					list.add(region);
+					start = i + 1;
+					dynamic = false;
+				}
+			}
+			regions = list.toArray(new Fragment[list.size()]);
+			template.regions = regions;
+		}
+		return regions;
+	}
+
+	protected String renderRegion(String templatePath, Fragment region, Tree data) throws IOException {
+		StringBuilder builder = new StringBuilder(writeBufferSize);
+		transformChildren(templatePath, builder, region, data, null, new RenderContext());
+		return builder.toString();
+	}
+
+	/**
+	 * Writes a dynamic region, marked with HTML comments.
+	 * 
+	 * @param builder
+	 *            output buffer
+	 * @param id
+	 *            ID of the region
+	 * @param content
+	 *            rendered content of the region
+	 */
+	protected void writeRegion(StringBuilder builder, String id, String content) {
+		builder.append("<!--").append(id).append("-->").append(content);
+		builder.append("<!--/").append(id).append("-->");
+	}
+
+	/**
+	 * Returns true if any of the changed paths (eg. "rows[2].name") overlaps
+	 * with the dependencies (eg. "rows[].name") of a region.
+	 */
+	protected boolean isAffected(TemplateManifest dependencies, Collection<String> changedPaths) {
+		for (String changedPath : changedPaths) {
+			String path = toPattern(changedPath);
+			for (String dependency : dependencies.paths) {
+				if (overlaps(path, dependency)) {
+					return true;
+				}
+			}
+			for (String loop : dependencies.loops) {
+				if (overlaps(path, loop)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the array indexes with "[]" (eg. "rows[2].name" to
+	 * "rows[].name").
+	 */
+	protected String toPattern(String path) {
+		if (path.indexOf('[') == -1) {
+			return path;
+		}
+		StringBuilder pattern = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			pattern.append(c);
+			if (c == '[') {
+				while (i + 1 < path.length() && path.charAt(i + 1) != ']') {
+					i++;
+				}
+			}
+		}
+		return pattern.toString();
+	}
+
+	/**
+	 * Returns true if one of the paths contains the other.
+	 */
+	protected boolean overlaps(String path1, String path2) {
+		if (path1.isEmpty() || path2.isEmpty() || path1.equals(path2)) {
+			return true;
+		}
+		String shorter = path1.length() < path2.length() ? path1 : path2;
+		String longer = shorter == path1 ? path2 : path1;
+		if (!longer.startsWith(shorter)) {
+			return false;
+		}
+		char c = longer.charAt(shorter.length());
+		return c == '.' || c == '[';
+	}
+
+	// --- ESI FRAGMENTS ---
+
+	protected boolean isPersonalized(String templatePath, Fragment region) throws IOException {
+		if (personalizedPaths == null || personalizedPaths.isEmpty()) {
+			return false;
+		}
+		TemplateManifest dependencies = region.manifest;
+		if (dependencies == null) {
+			Fragment wrapper = new Fragment();
+			wrapper.children = new Fragment[] { region };
+			dependencies = new TemplateManifest();
+			collectDependencies(templatePath, wrapper, new HashMap<>(), dependencies, 0);
+			if (!reloadTemplates) {
+				region.manifest = dependencies;
+			}
+		}
+		return isAffected(dependencies, personalizedPaths);
+	}
+
+	protected Fragment findEsiBlock(Fragment command, String id) {
+		if (command.children != null) {
+			for (Fragment child : command.children) {
+				if (child.type == ESI_BLOCK && id.equals(child.content)) {
+					return child;
+				}
+				Fragment block = findEsiBlock(child, id);
+				if (block != null) {
+					return block;
+				}
+			}
+		}
+		return null;
 	}
 
 	/**
-	 * Removes a template from the memory cache.
+	 * Returns the URL of an ESI fragment (eg.
+	 * "/fragments/index.html?id=3-0").
 	 * 
 	 * @param templatePath
-	 *            path of template
+	 *            absolute path of the template
+	 * @param fragmentId
+	 *            ID of the fragment
+	 * 
+	 * @return URL of the fragment
 	 */
-	public void remove(String templatePath) {
-		cache.remove(templatePath);
+	protected String getFragmentUrl(String templatePath, String fragmentId) {
+		String path = templatePath;
+		if (!rootDirectory.isEmpty() && path.startsWith(rootDirectory + '/')) {
+			path = path.substring(rootDirectory.length() + 1);
+		}
+		return esiBaseUrl + '/' + path + "?id=" + fragmentId;
 	}
 
 	/**
-	 * Returns true if the memory cache contains a mapping for the specified
-	 * template.
+	 * Writes an ESI placeholder.
 	 * 
-	 * @param templatePath
-	 *            path of template
-	 * 
-	 * @return Returns true if the cache contains a mapping for the specified
-	 *         template.
+	 * @param builder
+	 *            output buffer
+	 * @param url
+	 *            URL of the fragment
 	 */
-	public boolean contains(String templatePath) {
-		return cache.get(templatePath) != null;
+	protected void writeEsiInclude(StringBuilder builder, String url) {
+		builder.append("<esi:include src=\"");
+		writeXMLContent(builder, url);
+		builder.append("\"/>");
 	}
 
-	/**
-	 * Removes all templates from the memory.
-	 */
-	public void clear() {
-		cache.clear();
-	}
+	// --- PAGE MEMOIZATION ---
 
-	// --- CUSTOM FUNCTIONS / HTML RENDERERS ---
+	protected TemplateManifest getManifest(String templatePath, Fragment template) throws IOException {
+		TemplateManifest manifest = template.manifest;
+		if (manifest == null) {
+			manifest = new TemplateManifest();
+			collectDependencies(templatePath, template, new HashMap<>(), manifest, 0);
+			if (template.ancestors != null) {
+				Collections.addAll(manifest.includes, template.ancestors);
+			}
 
-	public void addFunction(String name, BiConsumer<StringBuilder, Tree> function) {
-		if (name == null || name.isEmpty() || name.contains(" ")) {
-			throw new IllegalArgumentException("Invalid function name:" + name);
+			// Included templates can change in "reloadTemplates" mode
+			if (!reloadTemplates) {
+				template.manifest = manifest;
+			}
 		}
-		functions.put(name, Objects.requireNonNull(function));
+		return manifest;
 	}
 
-	// --- PROTECTED METHODS ---
-
-	protected Fragment getTemplate(String templatePath) throws IOException {
-		Fragment template = cache.get(templatePath);
-		boolean loadable = template == null;
-		if (reloadTemplates && !loadable) {
-			long modified = Long.parseLong(template.content);
-			long lastModified = loader.lastModified(templatePath);
-			loadable = lastModified < 1 || lastModified > modified;
+	protected void collectDependencies(String basePath, Fragment command, HashMap<String, String> scopes,
+			TemplateManifest manifest, int depth) throws IOException {
+		if (command.children == null) {
+			return;
 		}
-		if (loadable) {
-			String source = loader.loadTemplate(templatePath, charset);
-			if (templatePreProcessor != null) {
-				source = templatePreProcessor.apply(source);
+		for (Fragment child : command.children) {
+			switch (child.type) {
+			case INSERTABLE_VARIABLE:
+			case CONDITION_TAG_EXISTS:
+			case CONDITION_TAG_NOT_EXISTS:
+			case CONDITION_TAG_VALUE_EQUALS:
+			case CONDITION_TAG_VALUE_NOT_EQUALS:
+			case CONDITION_TAG_EXPRESSION:
+				manifest.paths.add(toDataPath(child.arg, scopes));
+				collectDependencies(basePath, child, scopes, manifest, depth);
+				break;
+
+			case FUNCTION:
+				manifest.functions.add(child.arg);
+				manifest.paths.add(child.content == null ? "" : toDataPath(child.content, scopes));
+				break;
+
+			case FOR_CYCLE:
+				String source = toDataPath(child.arg, scopes);
+				manifest.loops.add(source);
+				HashMap<String, String> loopScopes = new HashMap<>(scopes);
+				loopScopes.put(child.content, source);
+				collectDependencies(basePath, child, loopScopes, manifest, depth);
+				break;
+
+			case INSERTABLE_TEMPLATE_FILE:
+				String includePath = getAbsolutePath(basePath, child.arg);
+				manifest.includes.add(includePath);
+				if (depth < 16) {
+					collectDependencies(includePath, getTemplate(includePath), scopes, manifest, depth + 1);
+				}
+				break;
+
+			default:
+				collectDependencies(basePath, child, scopes, manifest, depth);
+				break;
 			}
-			long lastModified = loader.lastModified(templatePath);
-			template = FragmentBuilder.compile(source, templatePath, lastModified, functions);
-			cache.put(templatePath, template);
 		}
-		return template;
 	}
 
-	protected void transform(String basePath, StringBuilder builder, Fragment command, Tree root,
-			HashMap<String, Tree> variables) throws IOException {
-		String path = command.arg;
-		Tree current = root;
-		if (variables != null && path != null) {
-			for (String key : variables.keySet()) {
-				if (path.startsWith(key)) {
-					if (path.length() == key.length()) {
-						path = "";
-					} else {
-						path = path.substring(key.length() + 1);
-					}
-					current = variables.get(key);
-					break;
+	/**
+	 * Converts a variable (eg. "row.name") to a data path (eg.
+	 * "rows[].name").
+	 */
+	protected String toDataPath(String path, HashMap<String, String> scopes) {
+		for (Map.Entry<String, String> scope : scopes.entrySet()) {
+			String key = scope.getKey();
+			if (path.startsWith(key)) {
+				if (path.length() == key.length()) {
+					return scope.getValue() + "[]";
+				}
+				char c = path.charAt(key.length());
+				if (c == '.' || c == '[') {
+					return scope.getValue() + "[]" + path.substring(key.length());
 				}
 			}
 		}
-		switch (command.type) {
-		case STATIC_TEXT:
-			builder.append(command.content);
-			return;
+		return path;
+	}
 
-		case INSERTABLE_VARIABLE:
-			String value = current.get(path, "");
-			if (value != null && !value.isEmpty()) {
-				if (escapeSpecialCharacters) {
-					writeXMLContent(builder, value);
-				} else {
-					builder.append(value);
-				}
+	/**
+	 * Computes the cache key of a page from the values the template reads.
+	 * 
+	 * @return cache key, or null if the data contains lazy values (and the
+	 *         page cannot be memoized)
+	 */
+	protected String getPageKey(String templatePath, Fragment template, Tree data) throws IOException {
+		TemplateManifest manifest = getManifest(templatePath, template);
+		MessageDigest digest = ContentDigest.create(ContentDigest.SHA_256);
+		for (String path : manifest.paths) {
+			digestString(digest, path);
+			if (!digestPath(digest, data, path, false)) {
+				return null;
 			}
-			return;
+		}
 
-		case INSERTABLE_TEMPLATE_FILE:
-			String subTemplatePath = getAbsolutePath(basePath, command.arg);
-			Fragment include = getTemplate(subTemplatePath);
-			if (include == null) {
-				return;
+		// Number of the loop elements
+		for (String path : manifest.loops) {
+			digestString(digest, path);
+			if (!digestPath(digest, data, path, true)) {
+				return null;
 			}
-			transform(subTemplatePath, builder, include, root, variables);
-			return;
+		}
+		digest.update(escapeSpecialCharacters ? (byte) 1 : (byte) 0);
+		return templatePath + ContentDigest.toETag(digest.digest());
+	}
 
-		case FUNCTION:
-			if (command.content == null) {
-				command.function.accept(builder, current);
-			} else {
-				command.function.accept(builder, current.get(command.content));
+	protected boolean digestPath(MessageDigest digest, Tree node, String path, boolean sizeOnly) {
+		int loop = path.indexOf("[]");
+		String head = loop == -1 ? path : path.substring(0, loop);
+		Object value = node == null ? null : node.asObject();
+		if (!head.isEmpty()) {
+			for (String name : head.split("\\.")) {
+				if (name.isEmpty() || value == null) {
+					continue;
+				}
+				if (isLazy(value)) {
+					return false;
+				}
+				node = node.get(name);
+				value = node == null ? null : node.asObject();
 			}
-			return;
-
-		case FOR_CYCLE:
-			if (variables == null) {
-				variables = new HashMap<String, Tree>();
+		}
+		if (loop == -1) {
+			if (sizeOnly) {
+				if (isLazy(value)) {
+					return false;
+				}
+				digest.update(Integer.toString(node == null ? -1 : node.size()).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				return true;
 			}
-			Tree parent = current.get(path);
-			if (parent != null) {
-				for (Tree child : parent) {
-					variables.put(command.content, child);
-					transformChildren(basePath, builder, command, root, variables);
+			return digestValue(digest, value);
+		}
+		if (value == null) {
+			digest.update((byte) 0);
+			return true;
+		}
+		if (isLazy(value)) {
+			return false;
+		}
+		String rest = path.substring(loop + 2);
+		if (rest.startsWith(".")) {
+			rest = rest.substring(1);
+		}
+		for (Tree child : node) {
+			if (!digestPath(digest, child, rest, sizeOnly)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected boolean digestValue(MessageDigest digest, Object value) {
+		if (value == null) {
+			digest.update((byte) 0);
+			return true;
+		}
+		if (value instanceof Tree) {
+			return digestValue(digest, ((Tree) value).asObject());
+		}
+		if (isLazy(value)) {
+			return false;
+		}
+		if (value instanceof Map) {
+			digest.update((byte) '{');
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				digestString(digest, String.valueOf(entry.getKey()));
+				if (!digestValue(digest, entry.getValue())) {
+					return false;
 				}
 			}
-			variables = null;
-			return;
-			
-		// --- TAGS WITH "CHILDREN" ---
-			
-		case CONDITION_TAG_EXISTS:
-			if (current.get(path) == null) {
-				return;
+			digest.update((byte) '}');
+			return true;
+		}
+		if (value instanceof Collection) {
+			digest.update((byte) '[');
+			for (Object item : (Collection<?>) value) {
+				if (!digestValue(digest, item)) {
+					return false;
+				}
 			}
-			break;
+			digest.update((byte) ']');
+			return true;
+		}
+		if (value.getClass().isArray()) {
+			return digestValue(digest, new Tree().setObject(value).asList(Object.class));
+		}
+		digestString(digest, value.getClass().getName());
+		digestString(digest, value.toString());
+		return true;
+	}
 
-		case CONDITION_TAG_NOT_EXISTS:
-			if (current.get(path) == null) {
-				break;
+	protected boolean isLazy(Object value) {
+		return value instanceof Supplier || value instanceof Future || value instanceof Iterator
+				|| value instanceof BaseStream || (value instanceof Iterable && !(value instanceof Collection));
+	}
+
+	protected void digestString(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	protected Object waitFor(Future<?> future, RenderContext context) throws IOException {
+		if (!future.isDone()) {
+			if (context.nonBlocking) {
+				context.pendingFutures.add(future);
+				throw NOT_READY;
 			}
-			return;
 
-		case CONDITION_TAG_VALUE_EQUALS:
-			value = current.get(path, "");
-			if (value.equals(command.content)) {
-				break;
+			// Send everything up to the first unresolved value
+			context.flush(true);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException interrupt) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Rendering interrupted!");
+		} catch (ExecutionException cause) {
+			throw new IOException("Unable to resolve value!", cause.getCause());
+		}
+	}
+
+	// --- ASYNC BLOCKS ---
+
+	/**
+	 * Renders the async blocks into their placeholders, in the order their
+	 * Futures complete. A block that stops at an unfinished Future is rendered
+	 * again (from the start) only after that Future has completed.
+	 * 
+	 * @param context
+	 *            state of the current rendering
+	 * 
+	 * @throws IOException
+	 *             any I/O exception
+	 */
+	protected void transformDeferredBlocks(RenderContext context) throws IOException {
+		context.flush(true);
+		context.nonBlocking = true;
+		context.pendingFutures = new LinkedList<>();
+		StringBuilder blockBuilder = new StringBuilder(writeBufferSize);
+		try {
+			LinkedList<Future<?>> waiting = new LinkedList<>();
+			while (!context.deferredBlocks.isEmpty()) {
+				waiting.clear();
+				Iterator<DeferredBlock> blocks = context.deferredBlocks.iterator();
+				while (blocks.hasNext()) {
+					DeferredBlock block = blocks.next();
+					if (block.pending != null && !block.pending.isDone()) {
+						waiting.add(block.pending);
+						continue;
+					}
+					blockBuilder.setLength(0);
+					context.pendingFutures.clear();
+					try {
+						transformChildren(block.basePath, blockBuilder, block.fragment, block.root, block.variables,
+								context);
+					} catch (NotReadyException notReady) {
+						block.pending = context.pendingFutures.getFirst();
+						waiting.add(block.pending);
+						continue;
+					}
+					blocks.remove();
+					writeDeferredContent(context.builder, block.id, blockBuilder);
+					context.flush(true);
+				}
+				if (!context.deferredBlocks.isEmpty()) {
+					waitForAny(waiting);
+				}
 			}
-			return;
+		} finally {
+			context.nonBlocking = false;
+		}
+	}
 
-		case CONDITION_TAG_VALUE_NOT_EQUALS:
-			value = current.get(path, "");
-			if (value.equals(command.content)) {
-				return;
+	protected void waitForAny(LinkedList<Future<?>> futures) throws IOException {
+		try {
+			boolean completable = true;
+			for (Future<?> future : futures) {
+				if (!(future instanceof CompletableFuture)) {
+					completable = false;
+					break;
+				}
 			}
-			break;
+			if (completable) {
+				CompletableFuture.anyOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+			} else {
+				futures.getFirst().get();
+			}
+		} catch (InterruptedException interrupt) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Rendering interrupted!");
+		} catch (ExecutionException ignored) {
 
-		default:
-			break;
+			// The exception will be thrown by the next rendering attempt
 		}
-		transformChildren(basePath, builder, command, root, variables);
 	}
 
-	protected void transformChildren(String basePath, StringBuilder builder, Fragment command, Tree root,
-			HashMap<String, Tree> variables) throws IOException {
-		if (command.children != null) {
-			for (Fragment child : command.children) {
-				transform(basePath, builder, child, root, variables);
+	/**
+	 * Writes the placeholder of an async block.
+	 * 
+	 * @param builder
+	 *            output buffer
+	 * @param id
+	 *            ID of the async block
+	 */
+	protected void writePlaceholder(StringBuilder builder, String id) {
+		builder.append("<div id=\"").append(id).append("\"></div>");
+	}
+
+	/**
+	 * Writes the rendered content of an async block, and a script that moves
+	 * the content into the placeholder.
+	 * 
+	 * @param builder
+	 *            output buffer
+	 * @param id
+	 *            ID of the async block
+	 * @param content
+	 *            rendered content of the async block
+	 */
+	protected void writeDeferredContent(StringBuilder builder, String id, StringBuilder content) {
+		builder.append("<template id=\"").append(id).append("-content\">").append(content);
+		builder.append("</template><script>(function(){var p=document.getElementById(\"").append(id);
+		builder.append("\"),t=document.getElementById(\"").append(id);
+		builder.append("-content\");p.parentNode.replaceChild(t.content,p);t.parentNode.removeChild(t);})();</script>");
+	}
+
+	/**
+	 * Appends null, numeric and boolean values directly, without String
+	 * conversion and escaping.
+	 * 
+	 * @param builder
+	 *            output buffer
+	 * @param value
+	 *            value of a node
+	 * 
+	 * @return true if the value has been processed
+	 */
+	protected boolean writePrimitive(StringBuilder builder, Object value) {
+		if (value == null) {
+			return true;
+		}
+		Class<?> type = value.getClass();
+		if (type == Integer.class || type == Short.class || type == Byte.class) {
+			builder.append(((Number) value).intValue());
+			return true;
+		}
+		if (type == Long.class) {
+			builder.append(((Long) value).longValue());
+			return true;
+		}
+		if (type == Double.class) {
+			builder.append(((Double) value).doubleValue());
+			return true;
+		}
+		if (type == Float.class) {
+			builder.append(((Float) value).floatValue());
+			return true;
+		}
+		if (type == Boolean.class) {
+			builder.append(((Boolean) value).booleanValue());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Escapes the end of the builder (the output of a text formatter).
+	 */
+	protected void escapeXMLContent(StringBuilder builder, int start) {
+		char c;
+		for (int i = start; i < builder.length(); i++) {
+			c = builder.charAt(i);
+			if (c == '<' || c == '>' || c == '&' || c == '"' || c == '\'') {
+				String text = builder.substring(start);
+				builder.setLength(start);
+				writeXMLContent(builder, text);
+				return;
 			}
 		}
 	}
@@ -467,6 +2399,11 @@ public class TemplateEngine implements FragmentTypes {
 		if (rootDirectory.isEmpty()) {
 			return relativePath;
 		}
+		if (path.startsWith(TENANT_PREFIX)) {
+
+			// "Virtual" path of a tenant's template
+			return relativePath;
+		}
 		if (path.startsWith("/")) {
 			return rootDirectory + path;
 		}
@@ -507,6 +2444,17 @@ public class TemplateEngine implements FragmentTypes {
 		}
 	}
 
+	// --- NON-BLOCKING RENDERING ---
+
+	@SuppressWarnings("serial")
+	protected static final class NotReadyException extends RuntimeException {
+
+		protected NotReadyException() {
+			super("Value is not ready!", null, false, false);
+		}
+
+	}
+
 	// --- GETTERS AND SETTERS ---
 
 	public boolean isReloadTemplates() {
@@ -523,6 +2471,45 @@ public class TemplateEngine implements FragmentTypes {
 
 	public void setLoader(ResourceLoader loader) {
 		this.loader = Objects.requireNonNull(loader);
+		missingTemplates.clear();
+		pages.clear();
+	}
+
+	/**
+	 * Returns the cache of the compiled templates (eg. for the hit rate
+	 * statistics).
+	 * 
+	 * @return template cache
+	 */
+	public WeightedCache<String, Fragment> getCache() {
+		return cache;
+	}
+
+	public FragmentPool getFragmentPool() {
+		return fragmentPool;
+	}
+
+	public void setFragmentPool(FragmentPool fragmentPool) {
+		this.fragmentPool = fragmentPool;
+	}
+
+	public OffHeapStore getOffHeapStore() {
+		return offHeapStore;
+	}
+
+	/**
+	 * Sets the off-heap storage of the static texts. Must be set before the
+	 * templates are compiled.
+	 * 
+	 * @param offHeapStore
+	 *            storage (or null)
+	 */
+	public void setOffHeapStore(OffHeapStore offHeapStore) {
+		if (this.offHeapStore != offHeapStore) {
+			cache.clear();
+			this.offHeapStore = offHeapStore;
+			clearCompiled();
+		}
 	}
 
 	public boolean isEscapeSpecialCharacters() {
@@ -540,7 +2527,7 @@ public class TemplateEngine implements FragmentTypes {
 	public void setCharset(Charset charset) {
 		if (this.charset != charset) {
 			this.charset = Objects.requireNonNull(charset);
-			cache.clear();
+			clearCompiled();
 		}
 	}
 
@@ -565,6 +2552,81 @@ public class TemplateEngine implements FragmentTypes {
 		this.templatePreProcessor = templatePreProcessor;
 	}
 
+	public long getMissingTemplateTTL() {
+		return missingTemplateTTL;
+	}
+
+	public void setMissingTemplateTTL(long missingTemplateTTL) {
+		this.missingTemplateTTL = missingTemplateTTL;
+	}
+
+	public String getEsiBaseUrl() {
+		return esiBaseUrl;
+	}
+
+	public void setEsiBaseUrl(String esiBaseUrl) {
+		this.esiBaseUrl = esiBaseUrl;
+	}
+
+	public Set<String> getPersonalizedPaths() {
+		return personalizedPaths;
+	}
+
+	public void setPersonalizedPaths(Set<String> personalizedPaths) {
+		this.personalizedPaths = personalizedPaths;
+	}
+
+	public boolean isMemoizePages() {
+		return memoizePages;
+	}
+
+	public void setMemoizePages(boolean memoizePages) {
+		this.memoizePages = memoizePages;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getStaticSegmentSize() {
+		return staticSegmentSize;
+	}
+
+	public void setStaticSegmentSize(int staticSegmentSize) {
+		if (this.staticSegmentSize != staticSegmentSize) {
+			this.staticSegmentSize = staticSegmentSize;
+			clearCompiled();
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public boolean isAsyncPlaceholders() {
+		return asyncPlaceholders;
+	}
+
+	public void setAsyncPlaceholders(boolean asyncPlaceholders) {
+		this.asyncPlaceholders = asyncPlaceholders;
+	}
+
+	public int getMaxBuilderSize() {
+		return maxBuilderSize;
+	}
+
+	public void setMaxBuilderSize(int maxBuilderSize) {
+		this.maxBuilderSize = maxBuilderSize;
+	}
+
 	public int getWriteBufferSize() {
 		return writeBufferSize;
 	}
@@ -0,0 +1,79 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Data-dependency manifest of a compiled template (including its included
+ * templates). The paths are relative to the root of the data model; the
+ * elements of the loops are marked with "[]" (eg. "rows[].name"). An empty
+ * path means the whole data model (eg. a function without a variable).
+ */
+public class TemplateManifest {
+
+	// --- VARIABLES ---
+
+	/**
+	 * Data paths, read by the template.
+	 */
+	protected final TreeSet<String> paths = new TreeSet<>();
+
+	/**
+	 * Sources of the loops (eg. "rows" or "rows[].cells").
+	 */
+	protected final TreeSet<String> loops = new TreeSet<>();
+
+	/**
+	 * Names of the functions.
+	 */
+	protected final TreeSet<String> functions = new TreeSet<>();
+
+	/**
+	 * Absolute paths of the included templates.
+	 */
+	protected final TreeSet<String> includes = new TreeSet<>();
+
+	// --- GETTERS ---
+
+	public Set<String> getPaths() {
+		return Collections.unmodifiableSet(paths);
+	}
+
+	public Set<String> getLoops() {
+		return Collections.unmodifiableSet(loops);
+	}
+
+	public Set<String> getFunctions() {
+		return Collections.unmodifiableSet(functions);
+	}
+
+	public Set<String> getIncludes() {
+		return Collections.unmodifiableSet(includes);
+	}
+
+	// --- TO STRING ---
+
+	@Override
+	public String toString() {
+		return "paths=" + paths + ", loops=" + loops + ", functions=" + functions + ", includes=" + includes;
+	}
+
+}
\ No newline at end of file
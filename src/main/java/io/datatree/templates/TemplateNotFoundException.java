@@ -0,0 +1,34 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the loaders when the template does not exist. The "not found"
+ * results are cached by the TemplateEngine.
+ */
+public class TemplateNotFoundException extends IOException {
+
+	private static final long serialVersionUID = -2619164553244702405L;
+
+	public TemplateNotFoundException(String templatePath) {
+		super("Template not found: " + templatePath);
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A tenant of a shared TemplateEngine. The templates of the tenant are loaded
+ * from the tenant's (overlay) directory, or from the root directory of the
+ * engine, if the tenant has no own version. The compiled templates of the
+ * tenant are stored in the shared cache of the engine, but their total
+ * (estimated) size is limited by the tenant's quota. Usage:
+ *
+ * <pre>
+ * engine.addTenant("acme", "/web/tenants/acme", 4 * 1024 * 1024);
+ * String html = engine.process("acme", "index.html", data);
+ * </pre>
+ */
+public class Tenant {
+
+	// --- PROPERTIES ---
+
+	/**
+	 * Name of the tenant.
+	 */
+	protected final String name;
+
+	/**
+	 * Overlay directory of the tenant.
+	 */
+	protected final String directory;
+
+	/**
+	 * Max total weight of the cached templates of the tenant.
+	 */
+	protected final long maxWeight;
+
+	/**
+	 * Total weight of the cached templates of the tenant.
+	 */
+	protected long weight;
+
+	/**
+	 * Cached templates of the tenant (in LRU order).
+	 */
+	protected final LinkedHashMap<String, Entry> templates = new LinkedHashMap<>(16, 0.75f, true);
+
+	// --- CONSTRUCTOR ---
+
+	public Tenant(String name, String directory, long maxWeight) {
+		this.name = name;
+		this.directory = directory;
+		this.maxWeight = maxWeight;
+	}
+
+	// --- CACHE ACCOUNTING ---
+
+	/**
+	 * Registers a template, stored in the cache.
+	 */
+	protected synchronized void added(String templatePath, Fragment template, long templateWeight) {
+		Entry previous = templates.put(templatePath, new Entry(template, templateWeight));
+		if (previous != null) {
+			weight -= previous.weight;
+		}
+		weight += templateWeight;
+	}
+
+	/**
+	 * Unregisters a template, removed from the cache.
+	 */
+	protected synchronized void removed(String templatePath, Fragment template) {
+		Entry entry = templates.get(templatePath);
+		if (entry != null && entry.template == template) {
+			templates.remove(templatePath);
+			weight -= entry.weight;
+		}
+	}
+
+	/**
+	 * Marks a template as recently used.
+	 */
+	protected synchronized void touch(String templatePath) {
+		templates.get(templatePath);
+	}
+
+	/**
+	 * Returns the least recently used templates, which must be evicted to
+	 * fit into the quota.
+	 */
+	protected synchronized List<String> getVictims(String keep) {
+		LinkedList<String> victims = new LinkedList<>();
+		long remaining = weight;
+		Iterator<Map.Entry<String, Entry>> i = templates.entrySet().iterator();
+		while (remaining > maxWeight && i.hasNext()) {
+			Map.Entry<String, Entry> entry = i.next();
+			if (!entry.getKey().equals(keep)) {
+				victims.add(entry.getKey());
+				remaining -= entry.getValue().weight;
+			}
+		}
+		return victims;
+	}
+
+	protected synchronized List<String> getTemplatePaths() {
+		return new LinkedList<>(templates.keySet());
+	}
+
+	// --- GETTERS ---
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	// --- CACHE ENTRY ---
+
+	protected static final class Entry {
+
+		protected final Fragment template;
+
+		protected final long weight;
+
+		protected Entry(Fragment template, long weight) {
+			this.template = template;
+			this.weight = weight;
+		}
+
+	}
+
+}
\ No newline at end of file
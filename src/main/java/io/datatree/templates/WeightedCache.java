@@ -0,0 +1,561 @@
+/**
+ * This software is licensed under the Apache 2 license, quoted below.<br>
+ * <br>
+ * Copyright 2019 Andras Berkes [andras.berkes@programmer.net]<br>
+ * <br>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at<br>
+ * <br>
+ * http://www.apache.org/licenses/LICENSE-2.0<br>
+ * <br>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datatree.templates;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Size-bounded cache with a frequency-aware admission policy (W-TinyLFU).
+ * New entries are placed into a small LRU "window"; when an entry leaves the
+ * window, it is admitted into the main (segmented LRU) area only if it was
+ * requested more frequently than the entry it would evict. The frequencies
+ * are estimated by a Count-Min Sketch, which is halved periodically, so
+ * one-off entries cannot flush the frequently used ones. Both the number of
+ * entries and their estimated total weight are limited.<br>
+ * <br>
+ * Reads are lock-free: the accesses are recorded in a lossy, striped buffer,
+ * which is applied to the LRU order and the sketch under a try-lock (or
+ * before the next write). The removal listener is called after the lock is
+ * released.
+ *
+ * @param <K>
+ *            type of the keys
+ * @param <V>
+ *            type of the values
+ */
+public class WeightedCache<K, V> {
+
+	// --- SEGMENTS ---
+
+	protected static final byte WINDOW = 0;
+	protected static final byte PROBATION = 1;
+	protected static final byte PROTECTED = 2;
+
+	/**
+	 * All entries (read without locking).
+	 */
+	protected final ConcurrentHashMap<K, Node<V>> data = new ConcurrentHashMap<>();
+
+	/**
+	 * Admission window (about 1% of the capacity).
+	 */
+	protected final LinkedHashMap<K, Node<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Main area: entries requested once since admission.
+	 */
+	protected final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Main area: entries requested more than once (about 80% of the main
+	 * area).
+	 */
+	protected final LinkedHashMap<K, Node<V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Guards the segments, the weights and the sketch.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	// --- READ BUFFER ---
+
+	protected static final int STRIPES = 16;
+
+	protected static final int STRIPE_SIZE = 32;
+
+	/**
+	 * Keys of the recent reads (lossy: a full stripe overwrites the oldest
+	 * records).
+	 */
+	protected final AtomicReferenceArray<Object> readBuffer = new AtomicReferenceArray<>(STRIPES * STRIPE_SIZE);
+
+	protected final AtomicIntegerArray readCounters = new AtomicIntegerArray(STRIPES);
+
+	// --- LIMITS ---
+
+	protected final int maxEntries;
+
+	protected final long maxWeight;
+
+	protected final ToLongFunction<V> weigher;
+
+	/**
+	 * Optional listener of the removed (evicted, replaced or rejected) values.
+	 */
+	protected volatile Consumer<V> removalListener;
+
+	/**
+	 * Values removed under the lock (the listener is called after unlocking).
+	 */
+	protected final ArrayList<V> removedValues = new ArrayList<>();
+
+	protected long windowWeight;
+
+	protected long probationWeight;
+
+	protected long protectedWeight;
+
+	// --- FREQUENCY SKETCH ---
+
+	/**
+	 * Count-Min Sketch (4 rows of 4-bit counters, stored in bytes).
+	 */
+	protected final byte[][] sketch;
+
+	protected final int sketchMask;
+
+	protected int additions;
+
+	// --- STATISTICS ---
+
+	protected final LongAdder hitCount = new LongAdder();
+
+	protected final LongAdder missCount = new LongAdder();
+
+	protected long evictionCount;
+
+	// --- CONSTRUCTOR ---
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxEntries
+	 *            max number of entries
+	 * @param maxWeight
+	 *            max total weight of the entries (eg. in bytes)
+	 * @param weigher
+	 *            weight (eg. estimated retained size) of a value
+	 */
+	public WeightedCache(int maxEntries, long maxWeight, ToLongFunction<V> weigher) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxWeight = Math.max(1, maxWeight);
+		this.weigher = weigher;
+		int width = Integer.highestOneBit(Math.max(16, Math.min(this.maxEntries, 1 << 20)) * 2 - 1);
+		this.sketch = new byte[4][width];
+		this.sketchMask = width - 1;
+	}
+
+	// --- CACHE METHODS ---
+
+	public V get(K key) {
+		record(key);
+		Node<V> node = data.get(key);
+		if (node == null) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		return node.value;
+	}
+
+	public void put(K key, V value) {
+		long weight = Math.max(1, weigher.applyAsLong(value));
+		lock.lock();
+		try {
+			drainReads();
+			removeNode(key);
+			if (weight > maxWeight) {
+
+				// Too large to cache
+				removed(value);
+				return;
+			}
+			increment(key);
+			Node<V> node = new Node<>(value, weight);
+			data.put(key, node);
+			window.put(key, node);
+			windowWeight += weight;
+			long windowMax = Math.max(1, maxWeight / 100);
+			int windowEntries = Math.max(1, maxEntries / 100);
+			while (!window.isEmpty() && (windowWeight > windowMax || window.size() > windowEntries)) {
+				Iterator<Map.Entry<K, Node<V>>> i = window.entrySet().iterator();
+				Map.Entry<K, Node<V>> candidate = i.next();
+				i.remove();
+				windowWeight -= candidate.getValue().weight;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		} finally {
+			unlock();
+		}
+	}
+
+	public boolean containsKey(K key) {
+		return data.containsKey(key);
+	}
+
+	public void remove(K key) {
+		lock.lock();
+		try {
+			removeNode(key);
+		} finally {
+			unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			for (Node<V> node : data.values()) {
+				removed(node.value);
+			}
+			data.clear();
+			window.clear();
+			probation.clear();
+			protectedSegment.clear();
+			windowWeight = 0;
+			probationWeight = 0;
+			protectedWeight = 0;
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Evicts the least valuable entries (probation area first, then the
+	 * window, then the protected area, in LRU order).
+	 *
+	 * @param targetWeight
+	 *            max total weight after the eviction
+	 *
+	 * @return number of evicted entries
+	 */
+	public int shrink(long targetWeight) {
+		lock.lock();
+		try {
+			drainReads();
+			int evicted = 0;
+			evicted += shrink(probation, targetWeight);
+			evicted += shrink(window, targetWeight);
+			evicted += shrink(protectedSegment, targetWeight);
+			evictionCount += evicted;
+			return evicted;
+		} finally {
+			unlock();
+		}
+	}
+
+	protected int shrink(LinkedHashMap<K, Node<V>> segment, long targetWeight) {
+		int evicted = 0;
+		Iterator<Map.Entry<K, Node<V>>> i = segment.entrySet().iterator();
+		while (i.hasNext() && windowWeight + probationWeight + protectedWeight > targetWeight) {
+			Map.Entry<K, Node<V>> entry = i.next();
+			Node<V> node = entry.getValue();
+			i.remove();
+			data.remove(entry.getKey(), node);
+			removed(node.value);
+			if (segment == window) {
+				windowWeight -= node.weight;
+			} else if (segment == probation) {
+				probationWeight -= node.weight;
+			} else {
+				protectedWeight -= node.weight;
+			}
+			evicted++;
+		}
+		return evicted;
+	}
+
+	public int size() {
+		return data.size();
+	}
+
+	// --- STATISTICS ---
+
+	public long getWeight() {
+		lock.lock();
+		try {
+			return windowWeight + probationWeight + protectedWeight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getEvictionCount() {
+		lock.lock();
+		try {
+			return evictionCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the ratio of the successful requests.
+	 *
+	 * @return hit rate (0...1)
+	 */
+	public double getHitRate() {
+		long hits = hitCount.sum();
+		long requests = hits + missCount.sum();
+		return requests == 0 ? 1 : (double) hits / requests;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public Consumer<V> getRemovalListener() {
+		return removalListener;
+	}
+
+	public void setRemovalListener(Consumer<V> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + ", weight=" + getWeight() + ", hitRate=" + getHitRate() + ", evictions="
+				+ getEvictionCount();
+	}
+
+	// --- READ BUFFER ---
+
+	/**
+	 * Records a read (without locking). A full stripe is drained, if the lock
+	 * is free.
+	 */
+	protected void record(K key) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		int count = readCounters.getAndIncrement(stripe);
+		readBuffer.lazySet(stripe * STRIPE_SIZE + (count & (STRIPE_SIZE - 1)), key);
+		if ((count & (STRIPE_SIZE - 1)) == STRIPE_SIZE - 1 && lock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				unlock();
+			}
+		}
+	}
+
+	/**
+	 * Applies the recorded reads to the sketch and the LRU order (the lock is
+	 * held).
+	 */
+	@SuppressWarnings("unchecked")
+	protected void drainReads() {
+		for (int i = 0; i < readBuffer.length(); i++) {
+			Object recorded = readBuffer.getAndSet(i, null);
+			if (recorded == null) {
+				continue;
+			}
+			K key = (K) recorded;
+			increment(key);
+			Node<V> node = data.get(key);
+			if (node == null) {
+				continue;
+			}
+			switch (node.segment) {
+			case WINDOW:
+				window.get(key);
+				break;
+			case PROBATION:
+
+				// Promote to the protected segment
+				if (probation.remove(key) != null) {
+					probationWeight -= node.weight;
+					node.segment = PROTECTED;
+					protectedSegment.put(key, node);
+					protectedWeight += node.weight;
+					demoteProtected();
+				}
+				break;
+			default:
+				protectedSegment.get(key);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock, then calls the removal listener.
+	 */
+	protected void unlock() {
+		ArrayList<V> values = null;
+		if (!removedValues.isEmpty()) {
+			values = new ArrayList<>(removedValues);
+			removedValues.clear();
+		}
+		lock.unlock();
+		Consumer<V> listener = removalListener;
+		if (values != null && listener != null) {
+			values.forEach(listener);
+		}
+	}
+
+	// --- ADMISSION ---
+
+	protected void admit(K key, Node<V> candidate) {
+		long mainMax = maxWeight - Math.max(1, maxWeight / 100);
+		int mainEntries = Math.max(1, maxEntries - Math.max(1, maxEntries / 100));
+		int frequency = frequency(key);
+		while (probationWeight + protectedWeight + candidate.weight > mainMax
+				|| probation.size() + protectedSegment.size() + 1 > mainEntries) {
+			LinkedHashMap<K, Node<V>> segment = probation.isEmpty() ? protectedSegment : probation;
+			if (segment.isEmpty() || frequency <= frequency(segment.keySet().iterator().next())) {
+
+				// The candidate is rejected
+				evictionCount++;
+				data.remove(key, candidate);
+				removed(candidate.value);
+				return;
+			}
+			Iterator<Map.Entry<K, Node<V>>> i = segment.entrySet().iterator();
+			Map.Entry<K, Node<V>> victim = i.next();
+			i.remove();
+			if (segment == probation) {
+				probationWeight -= victim.getValue().weight;
+			} else {
+				protectedWeight -= victim.getValue().weight;
+			}
+			evictionCount++;
+			data.remove(victim.getKey(), victim.getValue());
+			removed(victim.getValue().value);
+		}
+		candidate.segment = PROBATION;
+		probation.put(key, candidate);
+		probationWeight += candidate.weight;
+	}
+
+	protected void demoteProtected() {
+		long protectedMax = (maxWeight - maxWeight / 100) * 8 / 10;
+		while (protectedWeight > protectedMax && protectedSegment.size() > 1) {
+			Iterator<Map.Entry<K, Node<V>>> i = protectedSegment.entrySet().iterator();
+			Map.Entry<K, Node<V>> eldest = i.next();
+			i.remove();
+			Node<V> node = eldest.getValue();
+			protectedWeight -= node.weight;
+			node.segment = PROBATION;
+			probation.put(eldest.getKey(), node);
+			probationWeight += node.weight;
+		}
+	}
+
+	protected void removeNode(K key) {
+		Node<V> node = data.remove(key);
+		if (node == null) {
+			return;
+		}
+		if (node.segment == WINDOW) {
+			window.remove(key);
+			windowWeight -= node.weight;
+		} else if (node.segment == PROBATION) {
+			probation.remove(key);
+			probationWeight -= node.weight;
+		} else {
+			protectedSegment.remove(key);
+			protectedWeight -= node.weight;
+		}
+		removed(node.value);
+	}
+
+	/**
+	 * Queues a removed value for the listener (the lock is held).
+	 */
+	protected void removed(V value) {
+		if (removalListener != null) {
+			removedValues.add(value);
+		}
+	}
+
+	// --- COUNT-MIN SKETCH ---
+
+	protected void increment(K key) {
+		int hash = spread(key.hashCode());
+		for (int row = 0; row < 4; row++) {
+			int index = indexOf(hash, row);
+			if (sketch[row][index] < 15) {
+				sketch[row][index]++;
+			}
+		}
+		if (++additions >= sketch[0].length * 10) {
+
+			// Aging: halve all counters
+			additions /= 2;
+			for (byte[] counters : sketch) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>= 1;
+				}
+			}
+		}
+	}
+
+	protected int frequency(K key) {
+		int hash = spread(key.hashCode());
+		int frequency = 15;
+		for (int row = 0; row < 4; row++) {
+			frequency = Math.min(frequency, sketch[row][indexOf(hash, row)]);
+		}
+		return frequency;
+	}
+
+	protected int indexOf(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 16;
+		return h & sketchMask;
+	}
+
+	protected static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 15);
+	}
+
+	private static final int[] SEEDS = { 0x97CB3127, 0xB2A65A35, 0xC3A5C85D, 0x8F1BBCDB };
+
+	// --- CACHE ENTRY ---
+
+	protected static final class Node<V> {
+
+		protected final V value;
+
+		protected final long weight;
+
+		/**
+		 * Segment of the entry (guarded by the lock).
+		 */
+		protected byte segment = WINDOW;
+
+		protected Node(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+
+	}
+
+}
\ No newline at end of file
@@ -25,8 +25,11 @@
  */
 package io.datatree.templates;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Collection;
 import java.util.LinkedList;
 
@@ -59,6 +62,8 @@ public class PojoTest extends TestCase {
 			public Collection<Class<?>> getTypes() {
 				LinkedList<Class<?>> list = new LinkedList<>();
 				list.add(Charset.class);
+				list.add(OutputStream.class);
+				list.add(MessageDigest.class);
 				return list;
 			}
 
@@ -75,6 +80,12 @@ public class PojoTest extends TestCase {
 						}
 						return StandardCharsets.UTF_8;
 					}
+					if (type == OutputStream.class) {
+						return new ByteArrayOutputStream();
+					}
+					if (type == MessageDigest.class) {
+						return MessageDigest.getInstance("SHA-256");
+					}
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
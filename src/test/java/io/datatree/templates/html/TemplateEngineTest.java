@@ -17,16 +17,62 @@
  */
 package io.datatree.templates.html;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.text.DecimalFormat;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
 import io.datatree.Tree;
+import io.datatree.templates.ContentDigest;
+import io.datatree.templates.DefaultLoader;
+import io.datatree.templates.Fragment;
+import io.datatree.templates.GzipOutput;
+import io.datatree.templates.LazyJson;
+import io.datatree.templates.MemoryWatcher;
+import io.datatree.templates.OffHeapStore;
+import io.datatree.templates.OutputBuffer;
+import io.datatree.templates.OutputSink;
+import io.datatree.templates.RegionPatch;
+import io.datatree.templates.RenderState;
+import io.datatree.templates.SegmentList;
 import io.datatree.templates.SimpleHtmlMinifier;
+import io.datatree.templates.SinkWriter;
 import io.datatree.templates.TemplateEngine;
+import io.datatree.templates.TemplateManifest;
+import io.datatree.templates.TemplateNotFoundException;
+import io.datatree.templates.Tenant;
+import io.datatree.templates.WeightedCache;
 import junit.framework.TestCase;
 
 /**
@@ -231,6 +277,1346 @@ public class TemplateEngineTest extends TestCase {
 		assertTrue(html.contains("12345<li>false<li>9</body></html>"));
 	}
 
+	@Test
+	public void testFormatters() throws Exception {
+		engine.setRootDirectory("");
+		Tree data = new Tree();
+		data.put("int", 1234567);
+		data.put("double", -1234.5678);
+		data.put("text", "<b>Lorem ipsum</b>");
+		data.put("size", 1536);
+		data.put("date", "2019-03-01T10:15:30+01:00");
+
+		engine.define("number.html", "#{fn number int en-US}|#{fn number double 2 de-DE}|#{fn number double}");
+		String html = process("number.html", data);
+		assertEquals("1,234,567|-1.234,57|" + DecimalFormat.getNumberInstance().format(-1234.5678), html);
+
+		engine.define("currency.html", "#{fn currency int en-US}|#{fn currency double ja-JP}");
+		html = process("currency.html", data);
+		assertEquals(DecimalFormat.getCurrencyInstance(Locale.US).format(1234567) + '|'
+				+ DecimalFormat.getCurrencyInstance(Locale.JAPAN).format(-1234.5678), html);
+
+		engine.define("date.html", "#{fn date date}|#{fn date date yyyy.MM.dd}|#{fn date missing}");
+		html = process("date.html", data);
+		assertEquals("2019-03-01T10:15:30+01:00|2019.03.01|", html);
+
+		// Unformattable dates are written as they are
+		engine.define("raw.html", "#{fn date local}|#{fn date text}|#{fn date day HH:mm}");
+		Tree dates = new Tree().put("text", "<tomorrow>").put("day", "2019-03-01");
+		dates.putObject("local", LocalDate.of(2019, 3, 1));
+		assertEquals("2019-03-01|&lt;tomorrow&gt;|00:00", process("raw.html", dates));
+
+		// Too many fraction digits
+		try {
+			engine.define("digits.html", "#{fn number double 20}");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		engine.define("other.html", "#{fn bytes size}|#{fn bytes int}|#{fn truncate text 6}|#{fn truncate text 100}");
+		html = process("other.html", data);
+		assertEquals("1.5 KB|1.2 MB|&lt;b&gt;Lor...|&lt;b&gt;Lorem ipsum&lt;/b&gt;", html);
+
+		// Escaping follows the engine's setting
+		engine.setEscapeSpecialCharacters(false);
+		assertEquals("1.5 KB|1.2 MB|<b>Lor...|<b>Lorem ipsum</b>", process("other.html", data));
+		assertEquals("2019-03-01|<tomorrow>|00:00", process("raw.html", dates));
+		engine.setEscapeSpecialCharacters(true);
+
+		// User-defined functions take precedence
+		engine.addFunction("bytes", (out, node) -> {
+			out.append("custom");
+		});
+		engine.define("other.html", "#{fn bytes size}");
+		assertEquals("custom", process("other.html", data));
+	}
+
+	@Test
+	public void testPrimitives() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("primitives.html", "[#{value}]");
+		Object[] values = { 123, 1234567890123L, 1.2d, -0.5f, 1.0E20d, 1.0E-5d, (byte) 3, (short) 4, true, false,
+				new BigDecimal("1.50"), Double.NaN };
+		for (Object value : values) {
+			Tree data = new Tree();
+			data.putObject("value", value);
+			assertEquals("[" + value + "]", process("primitives.html", data));
+		}
+		Tree data = new Tree();
+		data.putObject("value", null);
+		assertEquals("[]", process("primitives.html", data));
+	}
+
+	@Test
+	public void testConditions() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("conditions.html", "#{eq a 1}eq#{end}|#{!eq a 1}!eq#{end}|#{gt a 1.5}gt#{end}|"
+				+ "#{le a 2}le#{end}|#{in a 3,4,x}in#{end}|#{!in a 3 4 x}!in#{end}|#{is a}is#{end}|#{!is a}!is#{end}");
+
+		Tree data = new Tree();
+		assertEquals("|!eq||||!in||!is", process("conditions.html", data));
+		data.put("a", 1);
+		assertEquals("eq|||le||!in|is|", process("conditions.html", data));
+		data.put("a", 1.0d);
+		assertEquals("|!eq||le||!in|is|", process("conditions.html", data));
+		data.put("a", "1");
+		assertEquals("eq|||le||!in|is|", process("conditions.html", data));
+		data.put("a", 2L);
+		assertEquals("|!eq|gt|le||!in|is|", process("conditions.html", data));
+		data.put("a", 4);
+		assertEquals("|!eq|gt||in||is|", process("conditions.html", data));
+		data.put("a", "x");
+		assertEquals("|!eq|||in||is|", process("conditions.html", data));
+		data.put("a", 0);
+		assertEquals("|!eq||le||!in||!is", process("conditions.html", data));
+		data.put("a", false);
+		assertEquals("|!eq||||!in||!is", process("conditions.html", data));
+
+		engine.define("booleans.html", "#{eq a true}true#{end}#{eq a false}false#{end}");
+		data.put("a", true);
+		assertEquals("true", process("booleans.html", data));
+		data.put("a", "false");
+		assertEquals("false", process("booleans.html", data));
+
+		// "eq" and "!eq" compare as text (the quotes are not removed)
+		engine.define("text.html", "#{eq a 'x'}quoted#{end}#{eq a x}x#{end}#{!eq a 01}!eq#{end}#{eq a 1.0}1.0#{end}");
+		data.put("a", "x");
+		assertEquals("x!eq", process("text.html", data));
+		data.put("a", "'x'");
+		assertEquals("quoted!eq", process("text.html", data));
+		data.put("a", 1);
+		assertEquals("!eq", process("text.html", data));
+		data.put("a", 1.0d);
+		assertEquals("!eq1.0", process("text.html", data));
+	}
+
+	@Test
+	public void testLoader() throws Exception {
+		StringBuilder source = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			source.append("<p>á#{a}#{ex b}#{b}#{end}</p>");
+			expected.append("<p>á1</p>");
+		}
+		File file = File.createTempFile("template", ".html");
+		try {
+			Files.write(file.toPath(), source.toString().getBytes(StandardCharsets.UTF_8));
+			engine.setRootDirectory("");
+			engine.setTemplatePreProcessor(null);
+			Tree data = new Tree();
+			data.put("a", 1);
+
+			// Memory-mapped
+			DefaultLoader loader = new DefaultLoader();
+			loader.setMappedFileThreshold(0);
+			engine.setLoader(loader);
+			assertEquals(expected.toString(), process(file.getAbsolutePath(), data));
+
+			// Presized read
+			engine.clear();
+			loader.setMappedFileThreshold(Long.MAX_VALUE);
+			assertEquals(expected.toString(), process(file.getAbsolutePath(), data));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testMissingTemplates() throws Exception {
+		AtomicInteger counter = new AtomicInteger();
+		engine.setLoader(new DefaultLoader() {
+
+			@Override
+			public CharSequence loadSource(String templatePath, Charset charset) throws IOException {
+				counter.incrementAndGet();
+				return super.loadSource(templatePath, charset);
+			}
+
+		});
+		Tree data = new Tree();
+		for (int i = 0; i < 3; i++) {
+			try {
+				engine.process("missing.html", data);
+				fail();
+			} catch (TemplateNotFoundException e) {
+				// Ok!
+			}
+		}
+		assertEquals(1, counter.get());
+
+		// Defined templates are not cached as "missing"
+		engine.define("/io/datatree/templates/html/missing.html", "ok");
+		assertEquals("ok", engine.process("missing.html", data));
+
+		// Disable cache
+		engine.setMissingTemplateTTL(0);
+		for (int i = 0; i < 3; i++) {
+			try {
+				engine.process("missing2.html", data);
+				fail();
+			} catch (TemplateNotFoundException e) {
+				// Ok!
+			}
+		}
+		assertEquals(4, counter.get());
+
+		// Reload mode (the file system is not checked until the entry expires)
+		AtomicInteger checks = new AtomicInteger();
+		AtomicInteger loads = new AtomicInteger();
+		engine.setLoader(new DefaultLoader() {
+
+			@Override
+			public CharSequence loadSource(String templatePath, Charset charset) throws IOException {
+				loads.incrementAndGet();
+				return super.loadSource(templatePath, charset);
+			}
+
+			@Override
+			public long lastModified(String templatePath) {
+				checks.incrementAndGet();
+				return super.lastModified(templatePath);
+			}
+
+		});
+		engine.setMissingTemplateTTL(60000);
+		engine.setReloadTemplates(true);
+		for (int i = 0; i < 3; i++) {
+			try {
+				engine.process("missing3.html", data);
+				fail();
+			} catch (TemplateNotFoundException e) {
+				// Ok!
+			}
+		}
+		assertEquals(0, checks.get());
+		assertEquals(1, loads.get());
+
+		// Cleared by "remove"
+		engine.remove("missing3.html");
+		try {
+			engine.process("missing3.html", data);
+			fail();
+		} catch (TemplateNotFoundException e) {
+			// Ok!
+		}
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testLazyValues() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("lazy.html", "#{ex show}#{hidden}#{end}|#{user.name}|#{user.name}|"
+				+ "#{for item items}#{item.id}#{end}|#{eq user.age 42}42#{end}");
+		AtomicInteger hidden = new AtomicInteger();
+		AtomicInteger user = new AtomicInteger();
+		AtomicInteger items = new AtomicInteger();
+
+		Tree data = new Tree();
+		data.putObject("hidden", (Supplier<String>) () -> {
+			hidden.incrementAndGet();
+			return "hidden";
+		});
+		data.putObject("user", (Supplier<Tree>) () -> {
+			user.incrementAndGet();
+			return new Tree().put("name", "Tom").put("age", 42);
+		});
+		data.putObject("items", (Supplier<List<Object>>) () -> {
+			items.incrementAndGet();
+			LinkedList<Object> list = new LinkedList<>();
+			for (int i = 0; i < 3; i++) {
+				int id = i;
+				list.add((Supplier<Tree>) () -> new Tree().put("id", id));
+			}
+			return list;
+		});
+
+		assertEquals("|Tom|Tom|012|42", engine.process("lazy.html", data));
+		assertEquals(0, hidden.get());
+		assertEquals(1, user.get());
+		assertEquals(1, items.get());
+
+		// Memoized per rendering
+		data.put("show", true);
+		assertEquals("hidden|Tom|Tom|012|42", engine.process("lazy.html", data));
+		assertEquals(1, hidden.get());
+		assertEquals(2, user.get());
+		assertEquals(2, items.get());
+
+		// Null result = missing node (evaluated once)
+		AtomicInteger nothing = new AtomicInteger();
+		data.putObject("nothing", (Supplier<Object>) () -> {
+			nothing.incrementAndGet();
+			return null;
+		});
+		engine.define("null.html", "#{ex nothing}exists#{end}|#{!ex nothing}missing#{end}|#{nothing.name}|#{nothing}");
+		assertEquals("|missing||", engine.process("null.html", data));
+		assertEquals(1, nothing.get());
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		engine.setRootDirectory("");
+		engine.setAsyncPlaceholders(true);
+		engine.define("stream.html", "head|#{slow}|#{async}A:#{a}#{end}|#{async}B:#{b}#{end}|tail");
+		CompletableFuture<String> slow = new CompletableFuture<>();
+		CompletableFuture<String> a = new CompletableFuture<>();
+		CompletableFuture<String> b = new CompletableFuture<>();
+		LinkedList<String> flushed = new LinkedList<>();
+
+		// Completes the Futures one by one (B first)
+		StringWriter out = new StringWriter() {
+
+			@Override
+			public void flush() {
+				flushed.add(toString());
+				if (flushed.size() == 1) {
+					slow.complete("S");
+				} else if (flushed.size() == 2) {
+					b.complete("2");
+				} else if (flushed.size() == 3) {
+					a.complete("1");
+				}
+			}
+
+		};
+
+		Tree data = new Tree();
+		data.putObject("slow", slow);
+		data.putObject("a", a);
+		data.putObject("b", b);
+		engine.process("stream.html", data, out);
+
+		String html = out.toString();
+		assertEquals("head|", flushed.getFirst());
+		assertTrue(html.startsWith("head|S|<div id=\"async-1\"></div>|<div id=\"async-2\"></div>|tail"));
+		int b2 = html.indexOf("<template id=\"async-2-content\">B:2</template>");
+		int a1 = html.indexOf("<template id=\"async-1-content\">A:1</template>");
+		assertTrue(b2 > 0);
+		assertTrue(a1 > b2);
+
+		// One-shot loop sources are replayed when the block is rendered again
+		engine.define("rows.html", "#{async}#{for row rows}#{row}#{end}:#{late}|#{for s stream}#{s}#{end}#{end}");
+		Future<String> late = new Future<String>() {
+
+			int checks;
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return false;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+
+			@Override
+			public boolean isDone() {
+				return ++checks > 1;
+			}
+
+			@Override
+			public String get() {
+				return "3";
+			}
+
+			@Override
+			public String get(long timeout, TimeUnit unit) {
+				return "3";
+			}
+
+		};
+		Tree rows = new Tree();
+		rows.putObject("rows", Arrays.asList("x", "y").iterator());
+		rows.putObject("late", late);
+		rows.putObject("stream", Stream.of("z"));
+		out = new StringWriter();
+		engine.process("rows.html", rows, out);
+		assertTrue(out.toString().contains("<template id=\"async-1-content\">xy:3|z</template>"));
+
+		// Without placeholders
+		engine.setAsyncPlaceholders(false);
+		out = new StringWriter();
+		engine.process("stream.html", data, out);
+		assertEquals("head|S|A:1|B:2|tail", out.toString());
+		assertEquals(out.toString(), engine.process("stream.html", data));
+	}
+
+	@Test
+	public void testLoopSources() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("rows.csv", "#{for row rows}#{row.id};#{row.name}\n#{end}");
+
+		// Iterator, Iterable and Stream
+		Tree data = new Tree();
+		data.putObject("rows", Arrays.asList(row(1), row(2)).iterator());
+		assertEquals("1;a1\n2;a2\n", engine.process("rows.csv", data));
+		Iterable<Tree> iterable = () -> Arrays.asList(row(3), row(4)).iterator();
+		data.putObject("rows", iterable);
+		assertEquals("3;a3\n4;a4\n", engine.process("rows.csv", data));
+		data.putObject("rows", Stream.of(5, 6).map(i -> Collections.singletonMap("id", i)));
+		assertEquals("5;\n6;\n", engine.process("rows.csv", data));
+
+		// Unbounded export (the buffer is written out continuously)
+		engine.setWriteBufferSize(1024);
+		AtomicInteger writes = new AtomicInteger();
+		AtomicInteger maxWrite = new AtomicInteger();
+		StringWriter out = new StringWriter() {
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				writes.incrementAndGet();
+				maxWrite.set(Math.max(maxWrite.get(), len));
+				super.write(cbuf, off, len);
+			}
+
+		};
+		data.putObject("rows", IntStream.range(0, 10000).mapToObj(this::row));
+		engine.process("rows.csv", data, out);
+		String csv = out.toString();
+		assertTrue(csv.startsWith("0;a0\n1;a1\n"));
+		assertTrue(csv.endsWith("9999;a9999\n"));
+		assertTrue(writes.get() > 50);
+		assertTrue(maxWrite.get() < 2048);
+	}
+
+	protected Tree row(int id) {
+		return new Tree().put("id", id).put("name", "a" + id);
+	}
+
+	@Test
+	public void testLoopVariables() throws Exception {
+		engine.setRootDirectory("");
+		Tree data = new Tree().put("rowsTitle", "Rows");
+		data.put("rows.title", "Title");
+		Tree list = data.putList("list");
+		list.addObject(row(1));
+		list.addObject(row(2));
+
+		// A loop variable matches whole path segments only
+		engine.define("segments.html", "#{for row list}#{row.id}:#{rowsTitle}:#{rows.title};#{end}");
+		assertEquals("1:Rows:Title;2:Rows:Title;", engine.process("segments.html", data));
+
+		// The path of a function is resolved through the loop variables
+		engine.define("functions.html", "#{for row list}#{fn truncate row.name 1}#{fn number row.id 1 en-US};#{end}");
+		assertEquals("a...1.0;a...2.0;", engine.process("functions.html", data));
+	}
+
+	@Test
+	public void testLazyJson() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("json.html", "#{user.name}|#{user.age}|#{for tag user.tags}[#{tag}]#{end}|"
+				+ "#{user.address.city}|#{ex user.missing}x#{end}|#{is user.admin}admin#{end}|#{gt user.age 40}old#{end}");
+		String json = "{\"skipped\": {\"a\": [1, 2, {\"b\": \"}]\\\"\"}]}, \"user\": {\"name\": \"T\\u00f6m <b> \\\"x\\\"\", "
+				+ "\"age\": 42, \"admin\": true, \"tags\": [\"a\", \"\u00e9\", null], "
+				+ "\"address\": {\"city\": \"Bp\"}, \"big\": 123456789012345678901234567890, \"pi\": -3.14e0}}";
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+		String expected = "T\u00f6m &lt;b&gt; &quot;x&quot;|42|[a][\u00e9][]|Bp||admin|old";
+		assertEquals(expected, engine.process("json.html", bytes));
+
+		// Typed values
+		Tree data = LazyJson.parse(bytes);
+		assertEquals(42L, data.get("user.age").asObject());
+		assertEquals(-3.14, data.get("user.pi", 0d), 0.001);
+		assertEquals("123456789012345678901234567890", data.get("user.big", ""));
+		assertEquals(3, data.get("user.tags").size());
+		assertEquals(2, data.get("skipped.a[1]", 0));
+		assertEquals("}]\"", data.get("skipped.a[2].b", ""));
+
+		try {
+			engine.process("json.html", "{\"user\": {\"name\" 1}}".getBytes(StandardCharsets.UTF_8));
+			fail();
+		} catch (IllegalArgumentException expectedError) {
+			// Ok
+		}
+
+		// Literals are validated
+		for (String literal : new String[] { "tru", "trueish", "fals", "nil", "nulll" }) {
+			try {
+				engine.process("json.html", ("{\"user\": {\"admin\": " + literal + "}}").getBytes(StandardCharsets.UTF_8));
+				fail(literal);
+			} catch (IllegalArgumentException expectedError) {
+				// Ok
+			}
+		}
+	}
+
+	@Test
+	public void testOutputBuffer() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("feed.xml", "<feed>#{for row rows}<item id=\"#{row.id}\">#{row.name}</item>#{end}</feed>");
+		Tree data = new Tree();
+
+		// Small content (heap only)
+		OutputBuffer buffer = new OutputBuffer(1024);
+		data.putObject("rows", IntStream.range(0, 3).mapToObj(this::row));
+		engine.process("feed.xml", data, buffer);
+		assertFalse(buffer.isSpilled());
+		String small = buffer.toString(StandardCharsets.UTF_8);
+		assertEquals("<feed><item id=\"0\">a0</item><item id=\"1\">a1</item><item id=\"2\">a2</item></feed>", small);
+		buffer.release();
+
+		// Deleted by close()
+		try (OutputBuffer closed = new OutputBuffer(16)) {
+			buffer = closed;
+			data.putObject("rows", IntStream.range(0, 3).mapToObj(this::row));
+			engine.process("feed.xml", data, closed);
+			assertTrue(closed.isSpilled());
+		}
+		assertFalse(buffer.isSpilled());
+		assertEquals(0, buffer.size());
+
+		// Large content (spilled into a temporary file)
+		buffer = new OutputBuffer(1024);
+		data.putObject("rows", IntStream.range(0, 10000).mapToObj(this::row));
+		engine.process("feed.xml", data, buffer);
+		assertTrue(buffer.isSpilled());
+		String large = buffer.toString(StandardCharsets.UTF_8);
+		assertEquals(large.length(), buffer.size());
+		assertTrue(large.startsWith("<feed><item id=\"0\">a0</item>"));
+		assertTrue(large.endsWith("<item id=\"9999\">a9999</item></feed>"));
+
+		// Zero-copy transfer
+		File file = File.createTempFile("feed", ".xml");
+		try {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				buffer.transferTo(channel);
+			}
+			assertEquals(large, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			buffer.writeTo(out);
+			assertEquals(large, new String(out.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			buffer.release();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("flush.html", "<head></head>#{flush}<body>#{for row rows}<p>#{row.name}</p>#{end}</body>");
+		LinkedList<String> flushed = new LinkedList<>();
+		AtomicInteger writes = new AtomicInteger();
+		StringWriter out = new StringWriter() {
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				writes.incrementAndGet();
+				super.write(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() {
+				flushed.add(toString());
+			}
+
+		};
+		Tree data = new Tree();
+		Tree rows = data.putList("rows");
+		for (int i = 0; i < 100; i++) {
+			rows.addObject(row(i));
+		}
+
+		// Flush at the "#{flush}" tag only (the small first chunk doesn't
+		// limit the size of the next writes)
+		engine.process("flush.html", data, out);
+		assertEquals(2, flushed.size());
+		assertTrue(writes.get() < 5);
+		assertEquals("<head></head>", flushed.getFirst());
+		assertEquals(out.toString(), engine.process("flush.html", data));
+
+		// Flush at every 100 characters
+		engine.setChunkSize(100);
+		flushed.clear();
+		out.getBuffer().setLength(0);
+		engine.process("flush.html", data, out);
+		assertTrue(flushed.size() > 10);
+		int prev = 0;
+		for (String snapshot : flushed) {
+			assertTrue(snapshot.length() - prev < 120);
+			prev = snapshot.length();
+		}
+		assertEquals(out.toString(), engine.process("flush.html", data));
+	}
+
+	@Test
+	public void testOutputSink() throws Exception {
+		engine.setRootDirectory("");
+		engine.setStaticSegmentSize(10);
+		engine.define("sink.html", "<html><head></head><body>#{name}</body></html>");
+		Tree data = new Tree().put("name", "\u00e9 & co");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LinkedList<ByteBuffer> segments = new LinkedList<>();
+		OutputSink sink = new OutputSink() {
+
+			@Override
+			public void writeStatic(ByteBuffer segment) {
+				assertTrue(segment.isReadOnly());
+				segments.add(segment);
+				write(segment.duplicate());
+			}
+
+			@Override
+			public void write(ByteBuffer chunk) {
+				while (chunk.hasRemaining()) {
+					out.write(chunk.get());
+				}
+			}
+
+		};
+		engine.process("sink.html", data, sink);
+		assertEquals(engine.process("sink.html", data), new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(2, segments.size());
+
+		// Pre-encoded segments are reused
+		engine.process("sink.html", data, sink);
+		assertEquals(4, segments.size());
+		assertEquals(segments.get(0).rewind(), segments.get(2).rewind());
+
+		// Segments are encoded again after a charset change
+		engine.setStaticSegmentSize(4);
+		engine.define("charset.html", "<p>\u00e1rv\u00edzt\u0171r\u0151</p>#{name}<p>t\u00fck\u00f6r</p>");
+		out.reset();
+		engine.process("charset.html", data, sink);
+		assertEquals(engine.process("charset.html", data), new String(out.toByteArray(), StandardCharsets.UTF_8));
+		engine.setCharset(StandardCharsets.UTF_16LE);
+		out.reset();
+		engine.process("charset.html", data, sink);
+		assertEquals(engine.process("charset.html", data), new String(out.toByteArray(), StandardCharsets.UTF_16LE));
+		engine.define("charset.html", "<p>\u00e1rv\u00edzt\u0171r\u0151</p>#{name}");
+		out.reset();
+		engine.process("charset.html", data, sink);
+		assertEquals(engine.process("charset.html", data), new String(out.toByteArray(), StandardCharsets.UTF_16LE));
+		engine.setCharset(StandardCharsets.UTF_8);
+
+		// Surrogate pairs, split between two writes
+		out.reset();
+		SinkWriter writer = new SinkWriter(sink, StandardCharsets.UTF_8);
+		String text = "x\ud83d\ude00\ud83d\ude00";
+		writer.write(text, 0, 2);
+		writer.write(text, 2, 2);
+		writer.write(text, 4, 1);
+		writer.close();
+		assertEquals(text, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		// Unpaired surrogate at the end
+		out.reset();
+		writer = new SinkWriter(sink, StandardCharsets.UTF_8);
+		writer.write("a\ud83d");
+		writer.close();
+		assertEquals("a?", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSegmentList() throws Exception {
+		engine.setRootDirectory("");
+		engine.setStaticSegmentSize(16);
+		engine.define("segments.html", "<html><head><title>Title</title></head><body>"
+				+ "#{for row rows}<p>#{row.name}</p><hr class=\"separator\">#{end}</body></html>");
+		Tree data = new Tree();
+		Tree rows = data.putList("rows");
+		for (int i = 0; i < 2000; i++) {
+			rows.addObject(row(i));
+		}
+		String expected = engine.process("segments.html", data);
+
+		SegmentList segments = new SegmentList();
+		engine.process("segments.html", data, segments);
+		assertEquals(expected.length(), segments.size());
+		int shared = 0;
+		for (ByteBuffer segment : segments.getSegments()) {
+			if (segment.isReadOnly()) {
+				assertTrue(segment.isDirect());
+				shared++;
+			}
+		}
+		assertTrue(shared > 2000);
+
+		// Gathering write
+		File file = File.createTempFile("segments", ".html");
+		try {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				segments.writeTo(channel);
+			}
+			assertEquals(expected, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		} finally {
+			segments.release();
+			file.delete();
+		}
+		assertEquals(0, segments.size());
+
+		// Reuse pooled buffers
+		engine.process("segments.html", data, segments);
+		assertEquals(expected.length(), segments.size());
+		segments.release();
+	}
+
+	@Test
+	public void testCompressed() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("footer.html", "<footer>static footer</footer>");
+		engine.define("static.html", "<html><body>static page#{include footer.html}</body></html>");
+		engine.define("dynamic.html", "<html><body>#{for row rows}<p>#{row.name}</p>#{flush}#{end}</body></html>");
+		Tree data = new Tree();
+		Tree rows = data.putList("rows");
+		for (int i = 0; i < 100; i++) {
+			rows.addObject(row(i));
+		}
+
+		// Dynamic page
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			engine.processCompressed("dynamic.html", data, out);
+			assertEquals(engine.process("dynamic.html", data), gunzip(out.toByteArray()));
+		}
+
+		// Precompressed static page
+		ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+		engine.processCompressed("static.html", data, out1);
+		assertEquals("<html><body>static page<footer>static footer</footer></body></html>", gunzip(out1.toByteArray()));
+		ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+		engine.processCompressed("static.html", null, out2);
+		assertTrue(Arrays.equals(out1.toByteArray(), out2.toByteArray()));
+
+		// Redefined page
+		engine.define("static.html", "<html>changed</html>");
+		out1.reset();
+		engine.processCompressed("static.html", data, out1);
+		assertEquals("<html>changed</html>", gunzip(out1.toByteArray()));
+
+		// Redefined include
+		engine.define("page.html", "<p>#{include footer.html}</p>");
+		engine.define("footer.html", "old");
+		out1.reset();
+		engine.processCompressed("page.html", data, out1);
+		assertEquals("<p>old</p>", gunzip(out1.toByteArray()));
+		engine.define("footer.html", "NEW");
+		out1.reset();
+		engine.processCompressed("page.html", data, out1);
+		assertEquals("<p>NEW</p>", gunzip(out1.toByteArray()));
+
+		// Released stream
+		out1.reset();
+		GzipOutput gzip = new GzipOutput(out1);
+		gzip.write("released".getBytes(StandardCharsets.UTF_8));
+		gzip.finish();
+		gzip.flush();
+		try {
+			gzip.write('x');
+			fail();
+		} catch (IOException expected) {
+		}
+		gzip.close();
+		assertEquals("released", gunzip(out1.toByteArray()));
+	}
+
+	@Test
+	public void testPrecompressedWithRootDirectory() throws Exception {
+		File root = Files.createTempDirectory("root").toFile();
+		try {
+			write(new File(root, "static.html"), "<html>#{include footer.html}</html>");
+			write(new File(root, "footer.html"), "<footer/>");
+			engine.setRootDirectory(root.getAbsolutePath());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			engine.processCompressed("static.html", null, out);
+			assertEquals("<html><footer/></html>", gunzip(out.toByteArray()));
+		} finally {
+			for (File file : root.listFiles()) {
+				file.delete();
+			}
+			root.delete();
+		}
+	}
+
+	protected String gunzip(byte[] bytes) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void testETag() throws Exception {
+		engine.setRootDirectory("");
+		engine.setStaticSegmentSize(8);
+		engine.define("etag.html", "<html><body>#{for row rows}<p>#{row.name}</p>#{end}</body></html>");
+		Tree data = new Tree();
+		Tree rows = data.putList("rows");
+		for (int i = 0; i < 100; i++) {
+			rows.addObject(row(i));
+		}
+		byte[] bytes = engine.process("etag.html", data).getBytes(StandardCharsets.UTF_8);
+		String expected = ContentDigest.toETag(MessageDigest.getInstance("SHA-256").digest(bytes));
+
+		// Computed during the rendering
+		OutputBuffer buffer = new OutputBuffer(512);
+		buffer.setDigest(ContentDigest.create(ContentDigest.SHA_256));
+		engine.process("etag.html", data, buffer);
+		assertTrue(buffer.isSpilled());
+		assertEquals(expected, buffer.getETag());
+		buffer.release();
+
+		SegmentList segments = new SegmentList();
+		segments.setDigest(ContentDigest.create(ContentDigest.SHA_256));
+		engine.process("etag.html", data, segments);
+		assertEquals(expected, segments.getETag());
+		segments.release();
+
+		// Different content
+		rows.get(0).put("name", "changed");
+		segments.setDigest(ContentDigest.create(ContentDigest.MD5));
+		engine.process("etag.html", data, segments);
+		assertEquals(34, segments.getETag().length());
+		assertFalse(expected.equals(segments.getETag()));
+		segments.release();
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		engine.setRootDirectory("");
+		engine.addFunction("upper", (out, node) -> out.append(node.asString().toUpperCase()));
+		engine.define("item.html", "<li>#{item.name}#{eq item.type 1}!#{end}</li>");
+		engine.define("list.html", "<h1>#{fn upper title}</h1>#{ex user}#{user.name}#{end}"
+				+ "<ul>#{for item items}#{include item.html}#{end}</ul>");
+
+		TemplateManifest manifest = engine.getManifest("list.html");
+		assertEquals("[items[].name, items[].type, title, user, user.name]", manifest.getPaths().toString());
+		assertEquals("[items]", manifest.getLoops().toString());
+		assertEquals("[upper]", manifest.getFunctions().toString());
+		assertEquals("[item.html]", manifest.getIncludes().toString());
+
+		// Memoization
+		AtomicInteger renders = new AtomicInteger();
+		engine.addFunction("upper", (out, node) -> {
+			renders.incrementAndGet();
+			out.append(node.asString().toUpperCase());
+		});
+		engine.define("list.html", "<h1>#{fn upper title}</h1>#{ex user}#{user.name}#{end}"
+				+ "<ul>#{for item items}#{include item.html}#{end}</ul>");
+		engine.setMemoizePages(true);
+		Tree data = new Tree().put("title", "Items").put("unused", 1);
+		data.putMap("user").put("name", "Tom").put("age", 42);
+		data.putList("items").addMap().put("name", "a").put("type", 1).put("price", 3);
+
+		String html = engine.process("list.html", data);
+		assertEquals("<h1>ITEMS</h1>Tom<ul><li>a!</li></ul>", html);
+		assertEquals(1, renders.get());
+
+		// Only unused values changed
+		data.put("unused", 2);
+		data.get("items[0]").put("price", 4);
+		assertEquals(html, engine.process("list.html", data));
+		assertEquals(1, renders.get());
+
+		// Used values changed
+		data.put("user.age", 43);
+		assertEquals(html, engine.process("list.html", data));
+		assertEquals(2, renders.get());
+		data.put("items[0].type", 2);
+		assertEquals("<h1>ITEMS</h1>Tom<ul><li>a</li></ul>", engine.process("list.html", data));
+		assertEquals(3, renders.get());
+		data.get("items").addMap().put("name", "b");
+		assertEquals("<h1>ITEMS</h1>Tom<ul><li>a</li><li>b</li></ul>", engine.process("list.html", data));
+		assertEquals(4, renders.get());
+
+		// Lazy values are not memoized
+		data.putObject("title", (Supplier<String>) () -> "Lazy");
+		engine.process("list.html", data);
+		engine.process("list.html", data);
+		assertEquals(6, renders.get());
+	}
+
+	@Test
+	public void testRegions() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("dashboard.html", "<h1>#{title}</h1><ul>#{for row rows}<li>#{row.name}: #{row.value}</li>#{end}</ul>"
+				+ "#{ex alert}<b>#{alert}</b>#{end}");
+		Tree data = new Tree().put("title", "Dashboard");
+		Tree rows = data.putList("rows");
+		rows.addMap().put("name", "cpu").put("value", 10);
+		rows.addMap().put("name", "mem").put("value", 20);
+
+		RenderState state = new RenderState("dashboard.html");
+		assertEquals("<h1><!--r1-->Dashboard<!--/r1--></h1><ul><!--r3--><li>cpu: 10</li><li>mem: 20</li><!--/r3--></ul>"
+				+ "<!--r5--><!--/r5-->", engine.process(state, data));
+
+		// Only the loop is affected
+		data.put("rows[1].value", 30);
+		List<RegionPatch> patches = engine.update(state, data, Collections.singleton("rows[1].value"));
+		assertEquals("[r3=<li>cpu: 10</li><li>mem: 30</li>]", patches.toString());
+		assertEquals("<li>cpu: 10</li><li>mem: 30</li>", state.getRegion("r3"));
+
+		// Unused or unchanged values
+		data.put("unused", 1);
+		assertTrue(engine.update(state, data, Arrays.asList("unused", "rows[0].unused")).isEmpty());
+		assertTrue(engine.update(state, data, Collections.singleton("title")).isEmpty());
+
+		// Multiple regions
+		data.put("title", "New").put("alert", "High load");
+		patches = engine.update(state, data, Arrays.asList("title", "alert"));
+		assertEquals("[r1=New, r5=<b>High load</b>]", patches.toString());
+
+		// Changed template
+		engine.define("dashboard.html", "<h2>#{title}</h2>");
+		patches = engine.update(state, data, Collections.emptyList());
+		assertEquals("[r1=New]", patches.toString());
+
+		// Markers only between elements
+		engine.define("form.html", "<input value=\"#{name}\"><title>#{title}</title>"
+				+ "<script>var a = '<p>#{name}</p>';</script><!-- #{name} --><p>#{name}</p>");
+		state = new RenderState("form.html");
+		assertEquals("<!--r0--><input value=\"Tom\"><title>New</title><script>var a = '<p>Tom</p>';</script>"
+				+ "<!-- Tom --><p><!--/r0--><!--r9-->Tom<!--/r9--></p>", engine.process(state, data.put("name", "Tom")));
+		patches = engine.update(state, data.put("title", "T"), Collections.singleton("title"));
+		assertEquals(1, patches.size());
+		assertTrue(patches.get(0).toString().startsWith("r0=<input value=\"Tom\"><title>T</title>"));
+	}
+
+	@Test
+	public void testEsi() throws Exception {
+		engine.setRootDirectory("");
+		engine.define("header.html", "<header>#{esi}Hello #{user.name}!#{end}</header>");
+		engine.define("shop.html", "#{include header.html}<h1>#{title}</h1>#{esi cart}#{cart.count} items#{end}"
+				+ "#{for p products}<p>#{p.name}#{esi}#{p.price}#{end}</p>#{end}<footer>#{user.name}</footer>");
+		Tree data = new Tree().put("title", "Shop");
+		data.putList("products").addMap().put("name", "Book").put("price", 5);
+		data.put("user.name", "Tom");
+		data.put("cart.count", 2);
+
+		// Normal mode
+		assertEquals("<header>Hello Tom!</header><h1>Shop</h1>2 items<p>Book5</p><footer>Tom</footer>",
+				engine.process("shop.html", data));
+
+		// ESI mode (blocks in loops are rendered in place)
+		String page = engine.processEsi("shop.html", data);
+		assertEquals("<header><esi:include src=\"/fragments/header.html?id=1\"/></header><h1>Shop</h1>"
+				+ "<esi:include src=\"/fragments/shop.html?id=cart\"/><p>Book5</p><footer>Tom</footer>", page);
+
+		// Regions that depend on personalized paths
+		engine.setPersonalizedPaths(Collections.singleton("user"));
+		page = engine.processEsi("shop.html", data);
+		assertEquals("<esi:include src=\"/fragments/shop.html?id=r0\"/><h1>Shop</h1>"
+				+ "<esi:include src=\"/fragments/shop.html?id=cart\"/><p>Book5</p>"
+				+ "<footer><esi:include src=\"/fragments/shop.html?id=r7\"/></footer>", page);
+
+		// Fragments
+		assertEquals("Hello Tom!", engine.processFragment("header.html", "1", data));
+		assertEquals("2 items", engine.processFragment("shop.html", "cart", data));
+		assertEquals("<header>Hello Tom!</header>", engine.processFragment("shop.html", "r0", data));
+		assertEquals("Tom", engine.processFragment("shop.html", "r7", data));
+		try {
+			engine.processFragment("shop.html", "x", data);
+			fail();
+		} catch (IllegalArgumentException expected) {
+			// Ok
+		}
+	}
+
+	@Test
+	public void testWeightedCache() throws Exception {
+		engine = new TemplateEngine(1000, 200 * 1024);
+		engine.setRootDirectory("");
+		Tree data = new Tree().put("name", "Tom");
+
+		// Hot pages
+		for (int i = 0; i < 10; i++) {
+			engine.define("hot" + i + ".html", "Hello #{name} " + i);
+		}
+		for (int n = 0; n < 5; n++) {
+			for (int i = 0; i < 10; i++) {
+				assertEquals("Hello Tom " + i, engine.process("hot" + i + ".html", data));
+			}
+		}
+
+		// Burst of one-off templates
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			large.append("<p>large template</p>");
+		}
+		for (int i = 0; i < 2000; i++) {
+			engine.define("mail" + i + ".html", large + "#{name}");
+		}
+		WeightedCache<String, Fragment> cache = engine.getCache();
+		assertTrue(cache.getWeight() <= cache.getMaxWeight());
+		assertTrue(cache.getEvictionCount() > 1000);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(engine.contains("hot" + i + ".html"));
+		}
+		assertTrue(cache.getHitRate() > 0.9);
+
+		// Too large to cache
+		for (int i = 0; i < 10; i++) {
+			large.append(large);
+		}
+		engine.define("huge.html", large.toString());
+		assertFalse(engine.contains("huge.html"));
+
+		// Rejected or evicted definitions are recompiled from the source
+		assertFalse(engine.contains("mail20.html"));
+		assertTrue(engine.process("mail20.html", data).endsWith("</p>Tom"));
+		assertEquals(large.length(), engine.process("huge.html", data).length());
+	}
+
+	// --- MEMORY PRESSURE ---
+
+	@Test
+	public void testShed() throws Exception {
+		engine = new TemplateEngine(1000, 200 * 1024);
+		engine.setRootDirectory("");
+		Tree data = new Tree().put("name", "Tom");
+		for (int i = 0; i < 20; i++) {
+			engine.define("page" + i + ".html", "Hello #{name} " + i);
+		}
+		for (int n = 0; n < 3; n++) {
+			for (int i = 0; i < 5; i++) {
+				assertEquals("Hello Tom " + i, engine.process("page" + i + ".html", data));
+			}
+		}
+		WeightedCache<String, Fragment> cache = engine.getCache();
+		long weight = cache.getWeight();
+		engine.shed();
+		assertTrue(cache.getWeight() <= weight / 2);
+		assertTrue(cache.size() < 20);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(engine.contains("page" + i + ".html"));
+		}
+
+		// Evicted templates are recompiled
+		for (int i = 0; i < 20; i++) {
+			assertEquals("Hello Tom " + i, engine.process("page" + i + ".html", data));
+		}
+		assertEquals(20, cache.size());
+
+		// Large builders are not reused
+		class BuilderEngine extends TemplateEngine {
+
+			StringBuilder builder() {
+				return getBuilder();
+			}
+
+		}
+		BuilderEngine builderEngine = new BuilderEngine();
+		StringBuilder builder = builderEngine.builder();
+		assertSame(builder, builderEngine.builder());
+		builder.setLength(builderEngine.getMaxBuilderSize() + 1);
+		assertNotSame(builder, builderEngine.builder());
+
+		// Builders of other threads are released too
+		builder = builderEngine.builder();
+		Thread shedder = new Thread(builderEngine::shed);
+		shedder.start();
+		shedder.join();
+		assertNotSame(builder, builderEngine.builder());
+
+		// Thresholds of the tenured pools are restored
+		HashMap<String, Long> thresholds = new HashMap<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.isCollectionUsageThresholdSupported()) {
+				thresholds.put(pool.getName(), pool.getCollectionUsageThreshold());
+			}
+		}
+		engine.enableMemoryShedding(0.9);
+		assertTrue(MemoryWatcher.isArmed());
+
+		// Armed at the lowest threshold, the engines are shed at their own
+		builderEngine.enableMemoryShedding(0.5);
+		assertEquals(0.5, MemoryWatcher.getUsageThreshold(), 0);
+		builder = builderEngine.builder();
+		weight = cache.getWeight();
+		MemoryWatcher.shedAll(0.7);
+		assertNotSame(builder, builderEngine.builder());
+		assertEquals(weight, cache.getWeight());
+		MemoryWatcher.shedAll(0.95);
+		assertTrue(cache.getWeight() < weight);
+		builderEngine.disableMemoryShedding();
+		assertEquals(0.9, MemoryWatcher.getUsageThreshold(), 0);
+
+		engine.disableMemoryShedding();
+		assertFalse(MemoryWatcher.isArmed());
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.isCollectionUsageThresholdSupported()) {
+				assertEquals(thresholds.get(pool.getName()), (Long) pool.getCollectionUsageThreshold());
+			}
+		}
+	}
+
+	// --- SHARED FRAGMENTS ---
+
+	@Test
+	public void testFragmentPool() throws Exception {
+		engine = new TemplateEngine();
+		engine.setRootDirectory("");
+		StringBuilder header = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			header.append("<p>header</p>");
+		}
+		String layout = header + "#{for row : rows}<li>#{row.name}</li>#{end}#{gt count 1}many#{end}";
+		for (int i = 0; i < 100; i++) {
+			engine.define("tenant" + i + "/index.html", layout);
+			engine.define("tenant" + i + "/other.html", layout + "<p>tenant " + i + "</p>");
+		}
+
+		// Identical sources
+		Fragment t1 = engine.getCache().get("tenant1/index.html");
+		Fragment t2 = engine.getCache().get("tenant2/index.html");
+		assertNotSame(t1, t2);
+		assertSame(t1.children, t2.children);
+		assertEquals("tenant2/index.html", t2.arg);
+
+		// Identical sub-fragments
+		Fragment o1 = engine.getCache().get("tenant1/other.html");
+		Fragment o2 = engine.getCache().get("tenant2/other.html");
+		assertSame(t1.children[0], o1.children[0]);
+		assertSame(o1.children[1], o2.children[1]);
+		assertNotSame(o1.children[3], o2.children[3]);
+		assertTrue(engine.getFragmentPool().size() < 250);
+
+		// Different conditions with the same arguments
+		engine.define("lt.html", "#{lt count 2}less#{end}#{gt count 2}greater#{end}");
+		assertEquals("greater", engine.process("lt.html", new Tree().put("count", 3)));
+
+		Tree data = new Tree().put("count", 2);
+		data.putList("rows").addMap().put("name", "a");
+		String html = header + "<li>a</li>many<p>tenant 7</p>";
+		assertEquals(html, engine.process("tenant7/other.html", data));
+	}
+
+	// --- OFF-HEAP STATIC TEXTS ---
+
+	@Test
+	public void testOffHeapStore() throws Exception {
+		engine = new TemplateEngine(2);
+		engine.setRootDirectory("");
+		OffHeapStore store = new OffHeapStore();
+		engine.setOffHeapStore(store);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append("<p>static \u00e1rv\u00edzt\u0171r\u0151</p>");
+		}
+		String source = text + "#{name}" + text + "#{ex name}" + text + "#{end}<p>short</p>";
+		engine.define("a.html", source);
+		engine.define("b.html", source);
+		Fragment template = engine.getCache().get("a.html");
+		assertNull(template.children[0].content);
+		assertNotNull(template.children[0].segment);
+		assertEquals("<p>short</p>", template.children[4].content);
+		long allocated = store.getAllocatedBytes();
+		assertEquals(text.toString().getBytes(StandardCharsets.UTF_8).length, allocated);
+
+		Tree data = new Tree().put("name", "Tom");
+		String html = text + "Tom" + text + text + "<p>short</p>";
+		assertEquals(html, engine.process("a.html", data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		engine.process("b.html", data, out);
+		assertEquals(html, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		// Shared by the two templates
+		engine.remove("a.html");
+		assertEquals(allocated, store.getAllocatedBytes());
+		engine.remove("b.html");
+		assertEquals(0, store.getAllocatedBytes());
+		assertEquals(0, store.getReservedBytes() - store.getChunkSize());
+
+		// Released fragments are not modified (the pooled copy is reused)
+		assertNull(template.children[0].content);
+		Fragment copy = template.children[0].copy();
+		assertSame(template.children[0].segment, copy.segment);
+		assertSame(template.children[0].bytes, copy.bytes);
+		engine.define("c.html", source);
+		assertSame(template.children[0], engine.getCache().get("c.html").children[0]);
+		assertEquals(allocated, store.getAllocatedBytes());
+		assertEquals(html, engine.process("c.html", data));
+		engine.remove("c.html");
+
+		// Evicted from the cache
+		for (int i = 0; i < 10; i++) {
+			engine.define("page" + i + ".html", i + source);
+		}
+		assertEquals(allocated + 2 * (allocated + 1), store.getAllocatedBytes());
+		assertEquals(9 + html, engine.process("page9.html", data));
+	}
+
+	// --- TENANTS ---
+
+	@Test
+	public void testTenants() throws Exception {
+		File base = Files.createTempDirectory("base").toFile();
+		File tenants = Files.createTempDirectory("tenants").toFile();
+		File acme = new File(tenants, "acme");
+		acme.mkdir();
+		try {
+			write(new File(base, "index.html"), "#{include header.html}<p>#{name}</p>");
+			write(new File(base, "header.html"), "<h1>base</h1>");
+			write(new File(acme, "header.html"), "<h1>acme</h1>");
+
+			engine = new TemplateEngine(1000, 1024 * 1024);
+			engine.setRootDirectory(base.getAbsolutePath());
+			engine.addTenant("acme", acme.getAbsolutePath(), 1024 * 1024);
+			engine.addTenant("other", new File(tenants, "other").getAbsolutePath(), 1024 * 1024);
+			Tree data = new Tree().put("name", "Tom");
+
+			// Overlay with fallback to the root directory
+			assertEquals("<h1>acme</h1><p>Tom</p>", engine.process("acme", "index.html", data));
+			assertEquals("<h1>base</h1><p>Tom</p>", engine.process("other", "index.html", data));
+			assertEquals("<h1>base</h1><p>Tom</p>", engine.process("index.html", data));
+			assertEquals("<h1>acme</h1>", engine.process(TemplateEngine.getTenantPath("acme", "/header.html"), data));
+			assertEquals(2, engine.getTenant("acme").size());
+
+			// Quota
+			Tenant greedy = engine.addTenant("greedy", tenants.getAbsolutePath(), 8 * 1024);
+			for (int i = 0; i < 1000; i++) {
+				engine.define("@greedy/page" + i + ".html", "<p>page " + i + "</p>#{name}");
+			}
+			assertTrue(greedy.getWeight() <= greedy.getMaxWeight());
+			assertTrue(greedy.size() > 10);
+			assertTrue(engine.contains("@greedy/page999.html"));
+			assertFalse(engine.contains("@greedy/page0.html"));
+			assertTrue(engine.contains("@acme/index.html"));
+			assertTrue(engine.contains("@acme/header.html"));
+			assertEquals("<p>page 0</p>Tom", engine.process("greedy", "page0.html", data));
+
+			engine.removeTenant("acme");
+			assertFalse(engine.contains("@acme/index.html"));
+			try {
+				engine.process("acme", "index.html", data);
+				fail();
+			} catch (IllegalArgumentException expected) {
+			}
+		} finally {
+			for (File dir : new File[] { acme, tenants, base }) {
+				for (File file : dir.listFiles()) {
+					file.delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	protected void write(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// --- LAYOUT INHERITANCE ---
+
+	@Test
+	public void testExtends() throws Exception {
+		engine = new TemplateEngine();
+		engine.setRootDirectory("");
+
+		// Defined before its layouts
+		engine.define("/pages/user.html", "#{extends ../layouts/site.html}ignored"
+				+ "#{block title}User #{name}#{end}#{block content}<p>#{name}</p>#{end}");
+		engine.define("/layouts/base.html", "<title>#{block title}Untitled#{end}</title>"
+				+ "<body>#{block body}#{end}#{block footer}#{include footer.html}#{end}</body>");
+		engine.define("/layouts/footer.html", "<footer/>");
+		engine.define("/layouts/site.html", "#{extends base.html}#{block body}<nav/>#{block content}#{end}#{end}");
+
+		Tree data = new Tree().put("name", "Tom");
+		String html = "<title>User Tom</title><body><nav/><p>Tom</p><footer/></body>";
+		assertEquals(html, engine.process("/pages/user.html", data));
+		assertEquals("<title>Untitled</title><body><nav/><footer/></body>",
+				engine.process("/layouts/site.html", data));
+
+		// Flattened, depends on the layouts
+		Fragment template = engine.getCache().get("/pages/user.html");
+		assertTrue(Arrays.asList(template.ancestors).contains("/layouts/base.html"));
+		TemplateManifest manifest = engine.getManifest("/pages/user.html");
+		assertTrue(manifest.getIncludes().contains("/layouts/site.html"));
+		assertTrue(manifest.getIncludes().contains("/layouts/base.html"));
+
+		// Invalidated by the changed layout
+		engine.define("/layouts/base.html", "<html>#{block body}#{end}</html>");
+		assertFalse(engine.contains("/pages/user.html"));
+		assertEquals("<html><nav/><p>Tom</p></html>", engine.process("/pages/user.html", data));
+
+		// Unnamed ESI blocks of the layout and the template
+		engine.define("/esi/layout.html", "<div>#{block side}<i>#{esi}L #{a}#{end}</i>#{end}</div>"
+				+ "#{block main}#{end}");
+		engine.define("/esi/page.html", "#{extends layout.html}#{block main}<p>#{esi}C #{b}#{end}</p>#{end}");
+		data.put("a", "A").put("b", "B");
+		assertEquals("<div><i><esi:include src=\"/fragments//esi/page.html?id=1-1\"/></i></div>"
+				+ "<p><esi:include src=\"/fragments//esi/page.html?id=3-1\"/></p>",
+				engine.processEsi("/esi/page.html", data));
+		assertEquals("L A", engine.processFragment("/esi/page.html", "1-1", data));
+		assertEquals("C B", engine.processFragment("/esi/page.html", "3-1", data));
+
+		engine.define("/a.html", "#{extends b.html}");
+		engine.define("/b.html", "#{extends a.html}");
+		try {
+			engine.process("/a.html", data);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	// --- MACROS ---
+
+	@Test
+	public void testMacros() throws Exception {
+		engine = new TemplateEngine();
+		engine.setRootDirectory("");
+		engine.define("table.html", "#{macro cell(value, css)}<td class=\"#{css}\">#{value}</td>#{end}"
+				+ "#{macro row(item)}<tr>#{call cell item.name \"name\"}#{call cell item.price 'price big'}"
+				+ "#{ex item.note}#{call cell item.note \"note\"}#{end}</tr>#{end}"
+				+ "<table>#{for item : items}#{call row item}#{end}</table>#{call cell total \"total\"}");
+		Tree data = new Tree();
+		Tree items = data.putList("items");
+		items.addMap().put("name", "A").put("price", 1).put("note", "new");
+		items.addMap().put("name", "B").put("price", 2);
+		data.put("total", 3);
+		assertEquals("<table><tr><td class=\"name\">A</td><td class=\"price big\">1</td>"
+				+ "<td class=\"note\">new</td></tr><tr><td class=\"name\">B</td>"
+				+ "<td class=\"price big\">2</td></tr></table><td class=\"total\">3</td>",
+				engine.process("table.html", data));
+
+		// Expanded inline, no runtime dispatch
+		TemplateManifest manifest = engine.getManifest("table.html");
+		assertTrue(manifest.getPaths().contains("items[].price"));
+		assertTrue(manifest.getIncludes().isEmpty());
+
+		// Functions with loop variables
+		engine.define("list.html", "#{macro price(p)}#{fn number p 2 en-US}#{end}"
+				+ "#{for item : items}#{call price item.price};#{end}");
+		assertEquals("1.00;2.00;", engine.process("list.html", data));
+
+		try {
+			engine.define("error.html", "#{macro m(a)}#{a}#{end}#{call m}");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			engine.define("error.html", "#{call missing x}");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		// Macros of a template are not visible in other files
+		try {
+			engine.define("error.html", "#{call cell total \"total\"}");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		// Shared macros
+		engine.addMacros("#{macro badge(text)}<b>#{text}</b>#{end}#{macro pair(a, b)}#{call badge a}#{call badge b}#{end}");
+		engine.define("a.html", "#{call pair total 'x'}");
+		engine.define("b.html", "#{macro badge(text)}<i>#{text}</i>#{end}#{call badge total}");
+		assertEquals("<b>3</b><b>x</b>", engine.process("a.html", data));
+		assertEquals("<i>3</i>", engine.process("b.html", data));
+
+		// Literals are template source (not escaped), variables are escaped
+		data.put("text", "<u>x</u>");
+		engine.define("raw.html", "#{call pair text \"<em>y</em>\"}");
+		assertEquals("<b>&lt;u&gt;x&lt;/u&gt;</b><b><em>y</em></b>", engine.process("raw.html", data));
+	}
+
 	@SuppressWarnings("unchecked")
 	protected String process(String templatePath, Tree data) throws Exception {	
 		String html1 = engine.process(templatePath, data);	